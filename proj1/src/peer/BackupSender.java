@@ -0,0 +1,221 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the chunks of a file keeping a bounded window of PUTCHUNK messages in flight.
+ * The window grows while STORED messages come back fast and shrinks on retries and give ups.
+ * Chunks whose contents are already stored by enough peers are sent as a PUTREF, without the body
+ */
+public class BackupSender {
+    private static final int MAX_WINDOW = 64;
+    private static final int INITIAL_WINDOW = 4;
+
+    private File file;
+    private int replicationDegree;
+    private ChunkSource source;
+    private Map<String, Integer> known;
+    private int nextChunk = 0;
+    private boolean lastRead = false;
+    private CongestionWindow window = new CongestionWindow(INITIAL_WINDOW, MAX_WINDOW);
+    private ConcurrentHashMap<Integer, Long> pending = new ConcurrentHashMap<>();
+    private AtomicInteger retries = new AtomicInteger(0);
+    private AtomicInteger gaveUp = new AtomicInteger(0);
+    private int references = 0;
+    private Runnable ended;
+
+    /**
+     *
+     * @param file
+     * @param replicationDegree
+     * @param source
+     * @param known number of peers known to store each content
+     */
+    public BackupSender(File file, int replicationDegree, ChunkSource source, Map<String, Integer> known) {
+        this.file = file;
+        this.replicationDegree = replicationDegree;
+        this.source = source;
+        this.known = known;
+    }
+
+    /**
+     * Starts sending the first window of chunks
+     */
+    public void start() {
+        fill();
+    }
+
+    /**
+     * Sends chunks until the window is full or the file ends
+     */
+    private synchronized void fill() {
+        Peer peer = Peer.getServer();
+        while (!lastRead && window.tryAcquire()) {
+            int chunkNo = nextChunk++;
+            ByteBuffer body;
+            try {
+                body = source.getChunk(chunkNo);
+            } catch (IOException e) {
+                e.printStackTrace();
+                body = ByteBuffer.allocate(0);
+            }
+            if (chunkNo == source.getNumChunks() - 1) {
+                lastRead = true;
+            }
+            Chunk c = new Chunk(chunkNo, this.file.getFileId(), this.replicationDegree);
+            String reference = null;
+            // shards are stored by a single peer each and decoded together, they are sent raw and never as references
+            Chunk match = source.getMatch(chunkNo);
+            ByteBuffer encoded = match == null ? null : match.getCodec().encode(body, body.remaining());
+            if (encoded != null) {
+                // the chunk has the contents of a chunk of the previous version, encoded the same way
+                c.setChecksum(match.getChecksum());
+                c.setCodec(match.getCodec());
+                c.setHash(match.getHash());
+                body = encoded;
+                if (this.known.getOrDefault(c.getHash(), 0) >= this.replicationDegree) {
+                    reference = c.getHash();
+                    references++;
+                }
+            } else if (!this.file.isErasureCoded()) {
+                if (body.remaining() == peer.getChunkSize()) {
+                    c.setChecksum(DeltaSource.checksum(body));
+                }
+                body = peer.getCompression().compress(c, body);
+                c.setHash(ChunkStore.hash(body));
+                if (this.known.getOrDefault(c.getHash(), 0) >= this.replicationDegree) {
+                    reference = c.getHash();
+                    references++;
+                }
+            }
+            this.file.putChunk(chunkNo, c);
+
+            pending.put(chunkNo, System.currentTimeMillis());
+            peer.backupAux(1, body, this.file.getFileId(), chunkNo, this.replicationDegree, this.file.getDataShards() + this.file.getParityShards(), reference);
+        }
+        if (lastRead) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Called when a STORED message for the chunk arrives
+     * @param chunkNo
+     * @param peerCount perceived replication degree of the chunk
+     */
+    void stored(int chunkNo, int peerCount) {
+        if (peerCount >= this.replicationDegree) {
+            acked(chunkNo);
+        }
+    }
+
+    /**
+     * Releases the chunk from the window, cancels its retransmission and grows the window,
+     * unless the ack took much longer than usual
+     * @param chunkNo
+     */
+    void acked(int chunkNo) {
+        Long sent = pending.remove(chunkNo);
+        if (sent == null) {
+            return;
+        }
+        Peer.getServer().getRetransmissions().cancel("PUTCHUNK" + this.file.getFileId() + chunkNo);
+        progress();
+        window.acked(sent > 0 ? System.currentTimeMillis() - sent : -1);
+        Peer.getServer().getPool().execute(this::fill);
+    }
+
+    /**
+     * Prints the progress of the backup after a chunk reaches the desired replication degree
+     */
+    private void progress() {
+        File f = this.file;
+        int a = f.doneC.getAndIncrement();
+        if (a == f.totalC) {
+            if (f.totalC != 0) {
+                System.out.println("BACKUP " + f.getName() + " " + a * 100 / f.totalC + "% done");
+            }
+            System.out.println("Ended Backup fo file " + f.getName() + " in " + (System.currentTimeMillis() - f.initTime) + " ms"
+                    + " (" + getRetries() + " retries, " + getGaveUp() + " gave up, " + getReferences() + " sent as references)");
+            f.doneC.set(0);
+            f.initTime = 0;
+            if (this.ended != null) {
+                this.ended.run();
+            }
+        } else if (a % 5 == 0) {
+            System.out.println("BACKUP " + f.getName() + " " + a * 100 / f.totalC + "% done");
+        }
+    }
+
+    /**
+     * Called when a chunk has to be sent again, halves the window at most once per round trip
+     * @param chunkNo
+     */
+    void retried(int chunkNo) {
+        retries.incrementAndGet();
+        // retransmitted chunks are not used to measure the round trip time
+        pending.computeIfPresent(chunkNo, (k, v) -> -1L);
+        window.retried();
+    }
+
+    /**
+     * Called when the chunk was not stored after every retry, the window drops to its minimum
+     * @param chunkNo
+     */
+    void gaveUp(int chunkNo) {
+        gaveUp.incrementAndGet();
+        if (pending.remove(chunkNo) == null) {
+            return;
+        }
+        window.gaveUp();
+        Peer.getServer().getPool().execute(this::fill);
+    }
+
+    /**
+     * Sets what to do once every chunk is stored
+     * @param ended
+     */
+    void setEnded(Runnable ended) {
+        this.ended = ended;
+    }
+
+    /**
+     *
+     * @return number of chunks sent again
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     *
+     * @return number of chunks that were given up on
+     */
+    public int getGaveUp() {
+        return gaveUp.get();
+    }
+
+    /**
+     *
+     * @return number of chunks sent as a PUTREF
+     */
+    public synchronized int getReferences() {
+        return references;
+    }
+
+    /**
+     *
+     * @return current size of the window
+     */
+    public int getWindow() {
+        return window.getWindow();
+    }
+}
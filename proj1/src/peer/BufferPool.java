@@ -0,0 +1,79 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable direct buffers, counts how many requests were served from the pool (hits)
+ * and how many needed a new buffer (misses)
+ */
+public class BufferPool {
+    private ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pooled = new AtomicInteger(0);
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private int bufferSize;
+    private int maxPooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     *
+     * @return a cleared buffer, taken from the pool if there is one available
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            this.misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        this.pooled.decrementAndGet();
+        this.hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool, it is dropped if the pool is full
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != this.bufferSize) {
+            return;
+        }
+        if (this.pooled.incrementAndGet() <= this.maxPooled) {
+            this.buffers.offer(buffer);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return size of the buffers of the pool
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     *
+     * @return number of buffers served from the pool
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     *
+     * @return number of buffers allocated because the pool was empty
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+}
@@ -0,0 +1,176 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Cuts a file in chunks of variable size where its contents say so, with FastCDC. A gear hash of the last
+ * bytes is rolled over the file and a chunk ends where enough of its bits are zero, so an insertion only moves
+ * the boundaries next to it and the chunks after it keep their contents, which the peers already store.
+ * Chunking is normalized: before the average size a cut needs more zero bits than after it, which keeps
+ * the sizes close to the average. Enabled with -Dpeer.chunker=fastcdc
+ */
+public class CdcSource extends ChunkSource {
+    private static final int SCAN_BUFFER = 8 * 1024 * 1024;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table must never change, the boundaries of the files already backed up depend on it
+        Random random = new Random(0x5d15c0de);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private long nanos;
+
+    /**
+     * Minimum, average and maximum chunk sizes of the chunker
+     */
+    static class Sizes {
+        private int min;
+        private int avg;
+        private int max;
+        private long smallMask;
+        private long largeMask;
+
+        Sizes(int min, int avg, int max) {
+            if (min < 64 || min >= avg || avg >= max) {
+                throw new IllegalArgumentException("chunk sizes must be 64 <= min < avg < max, got " + min + "/" + avg + "/" + max);
+            }
+            this.min = min;
+            this.avg = avg;
+            this.max = max;
+            int bits = 31 - Integer.numberOfLeadingZeros(avg);
+            // the high bits of the gear hash depend on the last 64 bytes
+            this.smallMask = -1L << (64 - Math.min(bits + 2, 63));
+            this.largeMask = -1L << (64 - Math.max(bits - 2, 1));
+        }
+
+        /**
+         * Reads the sizes set on the command line
+         * @param chunkSize largest chunk a message can carry
+         * @return the sizes or null if files are cut at fixed offsets
+         */
+        static Sizes fromProperties(int chunkSize) {
+            if (!System.getProperty("peer.chunker", "fixed").equals("fastcdc")) {
+                return null;
+            }
+            int max = Math.min(Integer.getInteger("peer.cdcMax", chunkSize), chunkSize);
+            int avg = Integer.getInteger("peer.cdcAvg", 32768);
+            int min = Integer.getInteger("peer.cdcMin", avg / 4);
+            return new Sizes(min, avg, max);
+        }
+
+        @Override
+        public String toString() {
+            return this.min + "/" + this.avg + "/" + this.max;
+        }
+    }
+
+    /**
+     *
+     * @param path
+     * @param chunkSize largest chunk a message can carry
+     * @param sizes
+     * @throws IOException
+     */
+    public CdcSource(Path path, int chunkSize, Sizes sizes) throws IOException {
+        super(path, chunkSize);
+        long start = System.nanoTime();
+        setOffsets(scan(path, sizes));
+        this.nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Finds every boundary of the file, reading it once
+     * @param path
+     * @param sizes
+     * @return offset of every chunk followed by the size of the file
+     * @throws IOException
+     */
+    private long[] scan(Path path, Sizes sizes) throws IOException {
+        long size = getSize();
+        long[] offsets = new long[(int) Math.min(size / sizes.avg * 2 + 2, Integer.MAX_VALUE - 8)];
+        int count = 0;
+        byte[] data = new byte[Math.max(SCAN_BUFFER, 2 * sizes.max)];
+        ByteBuffer window = ByteBuffer.wrap(data);
+        long windowStart = 0;
+        int at = 0;
+        int end = 0;
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            while (position < size) {
+                // the window holds at least a chunk of the largest size, unless the file ends first
+                if (end - at < sizes.max && windowStart + end < size) {
+                    System.arraycopy(data, at, data, 0, end - at);
+                    windowStart = position;
+                    end -= at;
+                    at = 0;
+                    window.clear().position(end);
+                    while (window.hasRemaining() && channel.read(window, windowStart + window.position()) > 0) {
+                    }
+                    end = window.position();
+                }
+                int length = cut(data, at, end - at, sizes);
+                if (count + 2 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count++] = position;
+                position += length;
+                at += length;
+            }
+        }
+        // an empty file still has a chunk
+        if (count == 0) {
+            offsets[count++] = 0;
+        }
+        offsets[count] = size;
+        return Arrays.copyOf(offsets, count + 1);
+    }
+
+    /**
+     *
+     * @param data
+     * @param start first byte of the chunk
+     * @param length bytes left in the file from the start, at least 1
+     * @param sizes
+     * @return size of the chunk
+     */
+    static int cut(byte[] data, int start, int length, Sizes sizes) {
+        if (length <= sizes.min) {
+            return length;
+        }
+        int n = Math.min(length, sizes.max);
+        int normal = Math.min(sizes.avg, n);
+        long hash = 0;
+        int i = sizes.min;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xff];
+            if ((hash & sizes.smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < n; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xff];
+            if ((hash & sizes.largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     *
+     * @return time spent finding the boundaries, in nanoseconds
+     */
+    public long getNanos() {
+        return this.nanos;
+    }
+}
@@ -1,19 +1,8 @@
 package peer;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
-import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static java.nio.file.StandardOpenOption.*;
-
 /**
  * Used to store the chunk metadata
  */
@@ -25,6 +14,12 @@ public class Chunk {
     private ConcurrentHashMap<Integer, Boolean> peerCount = null;
     private AtomicBoolean shallSend = new AtomicBoolean(true);
     private int size = 0;
+    private int groupSize = 0;
+    private String hash;
+    private ChunkCodec codec = ChunkCodec.RAW;
+    private Integer checksum;
+    private int reclaimPosition = -1;
+    private long reclaimKey;
 
     public Chunk(int chunkNo, String fileId, int repDegree) {
 
@@ -74,6 +69,102 @@ public class Chunk {
         this.size = size;
     }
 
+    /**
+     *
+     * @return shards in the group of a shard of an erasure coded file, 0 otherwise
+     */
+    int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Marks the chunk as a shard of an erasure coded file
+     * @param groupSize
+     */
+    void setGroupSize(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /**
+     *
+     * @return SHA-256 of the contents of the chunk, null if not known
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Sets the SHA-256 of the contents of the chunk
+     * @param hash
+     */
+    void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     *
+     * @return codec of the body sent for a chunk of a local file
+     */
+    ChunkCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec of the body sent for the chunk
+     * @param codec
+     */
+    void setCodec(ChunkCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     *
+     * @return weak rolling checksum of a full chunk of a local file, null for other chunks
+     */
+    Integer getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Sets the weak rolling checksum of the chunk
+     * @param checksum
+     */
+    void setChecksum(Integer checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     *
+     * @return position of the chunk in the reclaim queue, -1 if it is not in it
+     */
+    int getReclaimPosition() {
+        return reclaimPosition;
+    }
+
+    /**
+     * Sets the position of the chunk in the reclaim queue
+     * @param reclaimPosition
+     */
+    void setReclaimPosition(int reclaimPosition) {
+        this.reclaimPosition = reclaimPosition;
+    }
+
+    /**
+     *
+     * @return order of the chunk in the reclaim queue when it was last updated
+     */
+    long getReclaimKey() {
+        return reclaimKey;
+    }
+
+    /**
+     * Sets the order of the chunk in the reclaim queue
+     * @param reclaimKey
+     */
+    void setReclaimKey(long reclaimKey) {
+        this.reclaimKey = reclaimKey;
+    }
+
     /**
      *
      * @return the fileId of the chunk respective file
@@ -151,93 +242,21 @@ public class Chunk {
     }
 
     /**
-     * Writes the chunk data to the respective file(remote file)
+     * Appends the chunk metadata to the peer journal (remote file) and moves it in the reclaim queue
      */
     synchronized void updateRdata() {
         if (repDegree != -1) {
-            Path path = Paths.get(Peer.getServer().getServerName() + "/.rdata/" + this.fileId + "/" + this.chunkNo);
-            AsynchronousFileChannel fileChannel = null;
-            try {
-                fileChannel = AsynchronousFileChannel.open(
-                        path, WRITE, TRUNCATE_EXISTING, CREATE);
-            } catch (IOException e) {
-            }
-
-            byte out[] = (this.getPeerCount() + ";" + this.repDegree + ";" + size).getBytes();
-            ByteBuffer buffer = ByteBuffer.allocate(out.length);
-
-            buffer.put(out);
-            buffer.flip();
-
-            fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                @Override
-                public void completed(Integer result, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-            buffer.clear();
+            Peer.getServer().getJournal().remoteChunk(this);
+            Peer.getServer().getReclaimQueue().update(this);
         }
     }
 
     /**
-     * Writes the chunk data to the respective file(local file)
+     * Appends the chunk metadata to the peer journal (local file)
      */
     synchronized void updateLdata(String filename) {
         if (repDegree != -1) {
-            Path path = Paths.get(Peer.getServer().getServerName() + "/.ldata/" + this.fileId + "/" + this.chunkNo);
-            AsynchronousFileChannel fileChannel = null;
-            try {
-                fileChannel = AsynchronousFileChannel.open(
-                        path, WRITE, TRUNCATE_EXISTING, CREATE);
-            } catch (IOException e) {
-            }
-
-            StringBuilder sb = new StringBuilder();
-            sb.append((getPeerCount() + ";" + getRepDegree() + ";" + filename + "\n"));
-            for (Iterator<Integer> it = getPeerList().keys().asIterator(); it.hasNext(); ) {
-                sb.append(it.next() + ";");
-            }
-
-            byte out[] = sb.toString().getBytes();
-
-            ByteBuffer buffer = ByteBuffer.allocate(out.length);
-
-            buffer.put(out);
-            buffer.flip();
-
-            fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                @Override
-                public void completed(Integer result, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-            buffer.clear();
+            Peer.getServer().getJournal().localChunk(filename, this);
         }
     }
 }
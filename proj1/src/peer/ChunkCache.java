@@ -0,0 +1,218 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of stored chunks kept in direct buffers, used when serving GETCHUNK messages.
+ * Eviction is a segmented LRU: new chunks enter a probation segment and only move to the protected
+ * segment when they are read again, so a restore reading many chunks once does not flush the chunks
+ * that are read over and over
+ */
+public class ChunkCache {
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private long capacity;
+    private long protectedCapacity;
+    private long probationSize = 0;
+    private long protectedSize = 0;
+    private LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>();
+    private LinkedHashMap<String, ByteBuffer> protectedChunks = new LinkedHashMap<>();
+    private AtomicLong hits = new AtomicLong(0);
+    private AtomicLong misses = new AtomicLong(0);
+    private AtomicLong bytesServed = new AtomicLong(0);
+
+    /**
+     *
+     * @param capacity maximum number of bytes cached, 0 disables the cache
+     */
+    public ChunkCache(long capacity) {
+        this.capacity = capacity;
+        this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+    }
+
+    /**
+     * Gets the chunk from the cache or reads it from its file and caches it
+     * @param fileId
+     * @param chunkNo
+     * @param path file of the stored chunk
+     * @return read only view of the chunk, or null if the cache is disabled or the chunk does not fit
+     * @throws IOException if the chunk can not be read
+     */
+    public ByteBuffer read(String fileId, int chunkNo, Path path) throws IOException {
+        if (this.capacity == 0) {
+            return null;
+        }
+        ByteBuffer cached = get(fileId, chunkNo);
+        if (cached != null) {
+            this.hits.incrementAndGet();
+            this.bytesServed.addAndGet(cached.remaining());
+            return cached;
+        }
+        this.misses.incrementAndGet();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > this.capacity - this.protectedCapacity) {
+                return null;
+            }
+            ByteBuffer chunk = ByteBuffer.allocateDirect((int) channel.size());
+            int read = 0;
+            while (chunk.hasRemaining() && read >= 0) {
+                read = channel.read(chunk);
+            }
+            chunk.flip();
+            insert(key(fileId, chunkNo), chunk);
+            return chunk.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Caches a chunk that was just stored
+     * @param fileId
+     * @param chunkNo
+     * @param body
+     */
+    public void put(String fileId, int chunkNo, byte[] body) {
+        if (this.capacity == 0 || body.length > this.capacity - this.protectedCapacity) {
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(body.length);
+        chunk.put(body);
+        chunk.flip();
+        insert(key(fileId, chunkNo), chunk);
+    }
+
+    /**
+     * Looks the chunk up, a chunk found in probation is promoted to the protected segment
+     * @param fileId
+     * @param chunkNo
+     * @return read only view of the chunk or null
+     */
+    private synchronized ByteBuffer get(String fileId, int chunkNo) {
+        String key = key(fileId, chunkNo);
+        ByteBuffer chunk = this.protectedChunks.remove(key);
+        if (chunk != null) {
+            this.protectedChunks.put(key, chunk);
+            return chunk.asReadOnlyBuffer();
+        }
+        chunk = this.probation.remove(key);
+        if (chunk == null) {
+            return null;
+        }
+        this.probationSize -= chunk.capacity();
+        this.protectedChunks.put(key, chunk);
+        this.protectedSize += chunk.capacity();
+        // the least recently used protected chunks get another chance in probation
+        Iterator<Map.Entry<String, ByteBuffer>> it = this.protectedChunks.entrySet().iterator();
+        while (this.protectedSize > this.protectedCapacity && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> oldest = it.next();
+            it.remove();
+            this.protectedSize -= oldest.getValue().capacity();
+            this.probation.put(oldest.getKey(), oldest.getValue());
+            this.probationSize += oldest.getValue().capacity();
+        }
+        evict();
+        return chunk.asReadOnlyBuffer();
+    }
+
+    private synchronized void insert(String key, ByteBuffer chunk) {
+        remove(key);
+        this.probation.put(key, chunk);
+        this.probationSize += chunk.capacity();
+        evict();
+    }
+
+    /**
+     * Drops the least recently used chunks of probation, then of the protected segment, until the cache fits
+     */
+    private void evict() {
+        Iterator<ByteBuffer> it = this.probation.values().iterator();
+        while (this.probationSize + this.protectedSize > this.capacity && it.hasNext()) {
+            this.probationSize -= it.next().capacity();
+            it.remove();
+        }
+        it = this.protectedChunks.values().iterator();
+        while (this.probationSize + this.protectedSize > this.capacity && it.hasNext()) {
+            this.protectedSize -= it.next().capacity();
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        ByteBuffer chunk = this.probation.remove(key);
+        if (chunk != null) {
+            this.probationSize -= chunk.capacity();
+        }
+        chunk = this.protectedChunks.remove(key);
+        if (chunk != null) {
+            this.protectedSize -= chunk.capacity();
+        }
+    }
+
+    /**
+     * Removes a chunk from the cache
+     * @param fileId
+     * @param chunkNo
+     */
+    public synchronized void invalidate(String fileId, int chunkNo) {
+        remove(key(fileId, chunkNo));
+    }
+
+    /**
+     * Removes every chunk of a file from the cache
+     * @param fileId
+     */
+    public synchronized void invalidateFile(String fileId) {
+        for (LinkedHashMap<String, ByteBuffer> segment : List.of(this.probation, this.protectedChunks)) {
+            Iterator<Map.Entry<String, ByteBuffer>> it = segment.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ByteBuffer> entry = it.next();
+                if (entry.getKey().startsWith(fileId)) {
+                    if (segment == this.probation) {
+                        this.probationSize -= entry.getValue().capacity();
+                    } else {
+                        this.protectedSize -= entry.getValue().capacity();
+                    }
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String key(String fileId, int chunkNo) {
+        return fileId + chunkNo;
+    }
+
+    /**
+     *
+     * @return share of the reads answered by the cache
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     *
+     * @return number of chunk bytes served from the cache
+     */
+    public long getBytesServed() {
+        return this.bytesServed.get();
+    }
+
+    /**
+     *
+     * @return number of bytes cached
+     */
+    public synchronized long getSize() {
+        return this.probationSize + this.protectedSize;
+    }
+}
@@ -0,0 +1,109 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding of the body of a chunk sent by the peer. The peers that store a chunk keep its body as it was
+ * sent, only the initiator knows the codec of each chunk and decodes it when the file is restored
+ */
+public enum ChunkCodec {
+    RAW {
+        @Override
+        ByteBuffer encode(ByteBuffer chunk, int limit) {
+            return chunk;
+        }
+
+        @Override
+        byte[] decode(byte[] body, int length, int maxSize) {
+            if (length > maxSize) {
+                return null;
+            }
+            return length == body.length ? body : Arrays.copyOf(body, length);
+        }
+    },
+    DEFLATE {
+        // the deflaters and inflaters keep native buffers, they are reused instead of being created per chunk
+        private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+        @Override
+        ByteBuffer encode(ByteBuffer chunk, int limit) {
+            Deflater deflater = this.deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            try {
+                deflater.setInput(chunk.duplicate());
+                deflater.finish();
+                // the output can not grow past the limit, an incompressible chunk is given up on as soon as it reaches it
+                byte[] out = new byte[limit];
+                int length = 0;
+                while (!deflater.finished() && length < limit) {
+                    length += deflater.deflate(out, length, limit - length);
+                }
+                return deflater.finished() ? ByteBuffer.wrap(out, 0, length).slice().asReadOnlyBuffer() : null;
+            } finally {
+                deflater.reset();
+                this.deflaters.offer(deflater);
+            }
+        }
+
+        @Override
+        byte[] decode(byte[] body, int length, int maxSize) {
+            Inflater inflater = this.inflaters.poll();
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                inflater.setInput(body, 0, length);
+                byte[] out = new byte[maxSize];
+                int size = 0;
+                while (!inflater.finished() && size < maxSize) {
+                    int n = inflater.inflate(out, size, maxSize - size);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        return null;
+                    }
+                    size += n;
+                }
+                return inflater.finished() ? Arrays.copyOf(out, size) : null;
+            } catch (DataFormatException e) {
+                return null;
+            } finally {
+                inflater.reset();
+                this.inflaters.offer(inflater);
+            }
+        }
+    };
+
+    /**
+     * Encodes the remaining bytes of a chunk, its position is not changed
+     * @param chunk
+     * @param limit maximum size of the encoded body
+     * @return read only buffer with the encoded body, null if it would not fit in the limit
+     */
+    abstract ByteBuffer encode(ByteBuffer chunk, int limit);
+
+    /**
+     *
+     * @param body encoded body
+     * @param length size of the encoded body
+     * @param maxSize maximum size of the decoded chunk
+     * @return the decoded chunk, null if the body is not valid
+     */
+    abstract byte[] decode(byte[] body, int length, int maxSize);
+
+    /**
+     *
+     * @param id
+     * @return the codec with the id, RAW for unknown ids
+     */
+    static ChunkCodec fromId(int id) {
+        ChunkCodec[] codecs = values();
+        return id >= 0 && id < codecs.length ? codecs[id] : RAW;
+    }
+}
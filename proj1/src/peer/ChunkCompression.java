@@ -0,0 +1,89 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the chunks of the files backed up by the peer with the codec set with -Dpeer.codec, "deflate"
+ * by default on version 1.1 and "raw" on version 1.0, so a 1.0 peer sends the bodies the protocol describes.
+ * A chunk is sent raw unless the codec saves at least an eighth of it. Its first bytes are encoded on their own
+ * first, so data that is already compressed is usually detected after a few KB
+ */
+public class ChunkCompression {
+    private static final int PROBE = 4096;
+
+    private ChunkCodec codec;
+    private AtomicLong rawBytes = new AtomicLong(0);
+    private AtomicLong sentBytes = new AtomicLong(0);
+    private AtomicLong incompressible = new AtomicLong(0);
+    private AtomicLong encodeTime = new AtomicLong(0);
+    private AtomicLong decodeTime = new AtomicLong(0);
+
+    /**
+     *
+     * @param version protocol version of the peer
+     */
+    public ChunkCompression(String version) {
+        String codec = System.getProperty("peer.codec", version.equals("1.0") ? "raw" : "deflate");
+        this.codec = ChunkCodec.valueOf(codec.toUpperCase());
+    }
+
+    /**
+     * Encodes a chunk about to be sent and records its codec on the chunk
+     * @param c metadata of the chunk
+     * @param body raw chunk
+     * @return body to send
+     */
+    ByteBuffer compress(Chunk c, ByteBuffer body) {
+        int raw = body.remaining();
+        this.rawBytes.addAndGet(raw);
+        if (this.codec == ChunkCodec.RAW || raw == 0) {
+            this.sentBytes.addAndGet(raw);
+            return body;
+        }
+        long start = System.nanoTime();
+        ByteBuffer encoded = null;
+        // the start of the chunk is tried first, it tells most incompressible chunks apart at a fraction of the cost
+        if (raw <= PROBE || this.codec.encode(body.duplicate().limit(body.position() + PROBE), PROBE - PROBE / 8) != null) {
+            encoded = this.codec.encode(body, raw - raw / 8);
+        }
+        this.encodeTime.addAndGet(System.nanoTime() - start);
+        if (encoded == null) {
+            this.incompressible.incrementAndGet();
+            this.sentBytes.addAndGet(raw);
+            return body;
+        }
+        c.setCodec(this.codec);
+        this.sentBytes.addAndGet(encoded.remaining());
+        return encoded;
+    }
+
+    /**
+     * Decodes a chunk received while restoring a file
+     * @param codec codec of the chunk
+     * @param body
+     * @param length size of the body
+     * @param maxSize size of a chunk of the file
+     * @return the raw chunk, null if it could not be decoded
+     */
+    byte[] decompress(ChunkCodec codec, byte[] body, int length, int maxSize) {
+        if (codec == ChunkCodec.RAW) {
+            return ChunkCodec.RAW.decode(body, length, maxSize);
+        }
+        long start = System.nanoTime();
+        byte[] raw = codec.decode(body, length, maxSize);
+        this.decodeTime.addAndGet(System.nanoTime() - start);
+        return raw;
+    }
+
+    /**
+     *
+     * @return codec, compression ratio, chunks sent raw and time spent encoding and decoding
+     */
+    public String getStats() {
+        long sent = this.sentBytes.get();
+        return String.format("%s, ratio %.2f (%d/%d bytes), %d incompressible chunks, %d ms compressing, %d ms decompressing",
+                this.codec.name().toLowerCase(), sent == 0 ? 1.0 : (double) this.rawBytes.get() / sent, this.rawBytes.get(), sent,
+                this.incompressible.get(), this.encodeTime.get() / 1000000, this.decodeTime.get() / 1000000);
+    }
+}
@@ -0,0 +1,145 @@
+package peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Long lived TCP connection to the {@link ChunkServer} of another peer, shared by every restore.
+ * Requests are written as they come and the answers are read by a thread of the connection,
+ * which hands each chunk to the restore waiting for it
+ */
+public class ChunkConnection implements Runnable {
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    private String key;
+    private Socket socket;
+    private DataOutputStream out;
+    private ConcurrentHashMap<String, ChunkConnection> connections;
+    private volatile boolean closed = false;
+    private CompletableFuture<Void> opened = new CompletableFuture<>();
+
+    private ChunkConnection(String key, ConcurrentHashMap<String, ChunkConnection> connections) {
+        this.key = key;
+        this.connections = connections;
+    }
+
+    /**
+     * Gets the open connection to the peer or opens a new one. The thread that adds the connection to the map
+     * opens it and the others asking for the same peer wait for it, the connections to other peers are not held up
+     * @param connections open connections by address and port
+     * @param address
+     * @param port
+     * @return the connection
+     * @throws IOException if the connection can not be opened
+     */
+    static ChunkConnection get(ConcurrentHashMap<String, ChunkConnection> connections, String address, int port) throws IOException {
+        String key = address + ":" + port;
+        while (true) {
+            ChunkConnection connection = connections.get(key);
+            if (connection == null) {
+                ChunkConnection created = new ChunkConnection(key, connections);
+                connection = connections.putIfAbsent(key, created);
+                if (connection == null) {
+                    created.open(address, port);
+                    Peer.getServer().getExecutionMode().start(created);
+                    return created;
+                }
+            }
+            try {
+                connection.opened.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while connecting to " + key);
+            } catch (ExecutionException e) {
+                throw new IOException("could not connect to " + key, e.getCause());
+            }
+            if (!connection.closed) {
+                return connection;
+            }
+            connections.remove(key, connection);
+        }
+    }
+
+    private void open(String address, int port) throws IOException {
+        try {
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), 16 * 1024));
+        } catch (IOException e) {
+            close();
+            this.opened.completeExceptionally(e);
+            throw e;
+        }
+        this.opened.complete(null);
+    }
+
+    /**
+     * Asks for a chunk, the answer is handled when it arrives
+     * @param fileId
+     * @param chunkNo
+     */
+    void request(String fileId, int chunkNo) {
+        try {
+            synchronized (this.out) {
+                ChunkServer.writeFrame(this.out, ChunkServer.GET, fileId, chunkNo, null);
+                this.out.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Reads the answers until the connection is closed, it is closed whatever ends the reading
+     */
+    @Override
+    public void run() {
+        byte[] id = new byte[64];
+        int maxLength = ChunkServer.HEADER_SIZE + Peer.getServer().getChunkSize();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 128 * 1024));
+            while (true) {
+                int length = in.readInt();
+                if (length < ChunkServer.HEADER_SIZE || length > maxLength) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                byte type = in.readByte();
+                in.readFully(id);
+                int chunkNo = in.readInt();
+                byte[] body = new byte[length - ChunkServer.HEADER_SIZE];
+                in.readFully(body);
+                if (type == ChunkServer.CHUNK) {
+                    Handler.processChunk(new String(id, StandardCharsets.US_ASCII), chunkNo, body.length, body);
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            // unanswered requests are sent again by the GETCHUNK retries
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection, the next request to the peer opens a new one
+     */
+    void close() {
+        this.closed = true;
+        this.connections.remove(this.key, this);
+        try {
+            if (this.socket != null) {
+                this.socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
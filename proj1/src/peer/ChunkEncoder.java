@@ -0,0 +1,62 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Builds CHUNK messages in a pooled direct buffer of the dispatcher, the header is written in place
+ * and the stored chunk is read from its file right after it, so the body never goes through the heap.
+ * Chunks in the {@link ChunkCache} are sent from the cache with a gather write
+ */
+public class ChunkEncoder {
+    private ChunkEncoder() {
+    }
+
+    /**
+     * Encodes and sends a chunk message with the body read from the stored chunk
+     * @param dispatcher channel used to send the message, its buffers hold a whole message
+     * @param version
+     * @param senderId
+     * @param fileId
+     * @param chunkNo
+     * @param chunk path of the stored chunk
+     * @throws IOException if the chunk can not be read
+     */
+    public static void send(MulticastDispatcher dispatcher, String version, int senderId, String fileId, int chunkNo, Path chunk) throws IOException {
+        ByteBuffer cached = Peer.getServer().getChunkCache().read(fileId, chunkNo, chunk);
+        BufferPool buffers = dispatcher.getBufferPool();
+        ByteBuffer message = buffers.acquire();
+        // the buffer goes back to the pool once the send queue is done with it
+        Runnable release = () -> buffers.release(message);
+        try {
+            message.clear();
+            PutchunkEncoder.putAscii(message, version);
+            PutchunkEncoder.putAscii(message, " CHUNK ");
+            PutchunkEncoder.putInt(message, senderId);
+            message.put((byte) ' ');
+            PutchunkEncoder.putAscii(message, fileId);
+            message.put((byte) ' ');
+            PutchunkEncoder.putInt(message, chunkNo);
+            PutchunkEncoder.putAscii(message, " \r\n\r\n");
+            if (cached != null) {
+                message.flip();
+                dispatcher.send(release, message, cached);
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(chunk, StandardOpenOption.READ)) {
+                int read = 0;
+                while (message.hasRemaining() && read >= 0) {
+                    read = channel.read(message);
+                }
+            }
+            message.flip();
+            dispatcher.send(release, message);
+        } catch (IOException | RuntimeException e) {
+            buffers.release(message);
+            throw e;
+        }
+    }
+}
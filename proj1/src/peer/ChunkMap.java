@@ -0,0 +1,95 @@
+package peer;
+
+/**
+ * Map from chunks to values, kept in a {@link LongMap} under the keys of {@link FileHandles}. Every entry counts
+ * on the handle of its file, so the handle is given back once the last entry of the file is removed
+ */
+public class ChunkMap<V> {
+    private final LongMap<V> map = new LongMap<>();
+    private final FileHandles handles;
+
+    /**
+     *
+     * @param handles numbers of the files, shared by the chunk maps of the peer
+     */
+    public ChunkMap(FileHandles handles) {
+        this.handles = handles;
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return the value or null if there is none
+     */
+    public V get(String fileId, int chunkNo) {
+        long key = this.handles.find(fileId, chunkNo);
+        return key == 0 ? null : this.map.get(key);
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return true if the chunk has a value
+     */
+    public boolean containsKey(String fileId, int chunkNo) {
+        return get(fileId, chunkNo) != null;
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @param value not null
+     * @return the previous value or null if there was none
+     */
+    public V put(String fileId, int chunkNo, V value) {
+        V old = this.map.put(this.handles.acquire(fileId, chunkNo), value);
+        if (old != null) {
+            this.handles.release(fileId);
+        }
+        return old;
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @param value not null
+     * @return the current value, null if there was none and the value was added
+     */
+    public V putIfAbsent(String fileId, int chunkNo, V value) {
+        V old = this.map.putIfAbsent(this.handles.acquire(fileId, chunkNo), value);
+        if (old != null) {
+            this.handles.release(fileId);
+        }
+        return old;
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return the removed value or null if there was none
+     */
+    public V remove(String fileId, int chunkNo) {
+        long key = this.handles.find(fileId, chunkNo);
+        if (key == 0) {
+            return null;
+        }
+        V old = this.map.remove(key);
+        if (old != null) {
+            this.handles.release(fileId);
+        }
+        return old;
+    }
+
+    /**
+     *
+     * @return number of chunks
+     */
+    public int size() {
+        return this.map.size();
+    }
+}
@@ -0,0 +1,177 @@
+package peer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves chunks to restoring peers of version 1.1 over long lived TCP connections.
+ * Every frame starts with its length followed by the type, the fileId and the chunk number,
+ * a GET frame asks for a chunk and is answered by a CHUNK frame with its body or a MISSING frame.
+ * Any number of requests may be waiting on the same connection
+ */
+public class ChunkServer implements Runnable {
+    static final byte GET = 1;
+    static final byte CHUNK = 2;
+    static final byte MISSING = 3;
+    static final int HEADER_SIZE = 1 + 64 + 4;
+
+    private ServerSocketChannel server;
+    private ExecutionMode threads;
+
+    public ChunkServer(ExecutionMode threads) throws IOException {
+        this.threads = threads;
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(0));
+    }
+
+    /**
+     *
+     * @return port where the chunks are served
+     */
+    public int getPort() {
+        return this.server.socket().getLocalPort();
+    }
+
+    /**
+     * Accepts connections, each one is served by its own thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                SocketChannel socket = this.server.accept();
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                this.threads.start(() -> serve(socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of a connection until it is closed, the body of each chunk is sent from the
+     * chunk cache, or from the page cache with transferTo when it can not be cached, never copied to the heap
+     * @param socket
+     */
+    private void serve(SocketChannel socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket)));
+            ByteBuffer header = ByteBuffer.allocateDirect(4 + HEADER_SIZE);
+            byte[] id = new byte[64];
+            while (true) {
+                int length = in.readInt();
+                byte type = in.readByte();
+                in.readFully(id);
+                int chunkNo = in.readInt();
+                in.skipBytes(length - HEADER_SIZE);
+                if (type != GET) {
+                    continue;
+                }
+                String fileId = new String(id, StandardCharsets.US_ASCII);
+                ByteBuffer cached = cached(fileId, chunkNo);
+                if (cached != null) {
+                    header.clear();
+                    header.putInt(HEADER_SIZE + cached.remaining());
+                    header.put(CHUNK);
+                    header.put(id);
+                    header.putInt(chunkNo);
+                    header.flip();
+                    while (header.hasRemaining() || cached.hasRemaining()) {
+                        socket.write(new ByteBuffer[]{header, cached});
+                    }
+                    continue;
+                }
+                try (FileChannel chunk = open(fileId, chunkNo)) {
+                    long size = chunk == null ? 0 : chunk.size();
+                    header.clear();
+                    header.putInt(HEADER_SIZE + (int) size);
+                    header.put(chunk == null ? MISSING : CHUNK);
+                    header.put(id);
+                    header.putInt(chunkNo);
+                    header.flip();
+                    while (header.hasRemaining()) {
+                        socket.write(header);
+                    }
+                    long position = 0;
+                    while (position < size) {
+                        position += chunk.transferTo(position, size - position, socket);
+                    }
+                }
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            System.out.println("Chunk connection closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return the stored chunk from the cache, null if it is not stored by this peer or can not be cached
+     */
+    private ByteBuffer cached(String fileId, int chunkNo) {
+        Peer.getServer().getRecovery().ensureLoaded(fileId);
+        RemoteFile f = Peer.getServer().getStoredFiles().get(fileId);
+        if (f == null || !f.getChunks().containsKey(chunkNo)) {
+            return null;
+        }
+        try {
+            return Peer.getServer().getChunkCache().read(fileId, chunkNo, Path.of(Peer.getServer().getServerName() + "/" + fileId + "/" + chunkNo));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return the file of the stored chunk or null if it is not stored by this peer
+     */
+    private FileChannel open(String fileId, int chunkNo) {
+        Peer.getServer().getRecovery().ensureLoaded(fileId);
+        RemoteFile f = Peer.getServer().getStoredFiles().get(fileId);
+        if (f == null || !f.getChunks().containsKey(chunkNo)) {
+            return null;
+        }
+        try {
+            return FileChannel.open(Path.of(Peer.getServer().getServerName() + "/" + fileId + "/" + chunkNo), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a frame, the caller flushes the stream
+     * @param out
+     * @param type
+     * @param fileId
+     * @param chunkNo
+     * @param body may be null
+     * @throws IOException
+     */
+    static void writeFrame(DataOutputStream out, byte type, String fileId, int chunkNo, byte[] body) throws IOException {
+        int size = body == null ? 0 : body.length;
+        out.writeInt(HEADER_SIZE + size);
+        out.writeByte(type);
+        out.writeBytes(fileId);
+        out.writeInt(chunkNo);
+        if (body != null) {
+            out.write(body);
+        }
+    }
+}
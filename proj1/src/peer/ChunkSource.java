@@ -0,0 +1,149 @@
+package peer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Memory maps a file and exposes its chunks as read only slices of the mapping,
+ * so the chunk data is never copied to the java heap
+ */
+public class ChunkSource implements Closeable {
+    // keeps every mapped region under the 2GB limit of a MappedByteBuffer
+    private static final int CHUNKS_PER_REGION = 16384;
+    private FileChannel channel;
+    private long size;
+    private int chunkSize;
+    private MappedByteBuffer[] regions;
+    private long[] offsets;
+
+    public ChunkSource(Path path, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(path, READ);
+        this.size = this.channel.size();
+        this.chunkSize = chunkSize;
+        this.regions = new MappedByteBuffer[(int) (this.size / chunkSize / CHUNKS_PER_REGION) + 1];
+    }
+
+    /**
+     *
+     * @return size of the file in bytes
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * The last chunk is always smaller than the chunk size, so a file with a size multiple of it ends with an empty chunk
+     * @return number of chunks of the file
+     */
+    public int getNumChunks() {
+        if (this.offsets != null) {
+            return this.offsets.length - 1;
+        }
+        return (int) (this.size / this.chunkSize + 1);
+    }
+
+    /**
+     * Maps the region of the chunk if it was not mapped yet and returns the chunk slice
+     * @param chunkNo
+     * @return read only buffer with the chunk data
+     * @throws IOException
+     */
+    public ByteBuffer getChunk(int chunkNo) throws IOException {
+        if (this.offsets != null) {
+            return getRange(this.offsets[chunkNo], (int) (this.offsets[chunkNo + 1] - this.offsets[chunkNo]));
+        }
+        long start = (long) chunkNo * this.chunkSize;
+        return getRange(start, (int) Math.max(0, Math.min(this.chunkSize, this.size - start)));
+    }
+
+    /**
+     * A range that crosses the end of a mapped region is copied to the heap
+     * @param start offset in the file
+     * @param length at most the chunk size
+     * @return read only buffer with the bytes of the range
+     * @throws IOException
+     */
+    protected synchronized ByteBuffer getRange(long start, int length) throws IOException {
+        long regionLength = (long) CHUNKS_PER_REGION * this.chunkSize;
+        int r = (int) (start / regionLength);
+        long regionStart = r * regionLength;
+        if (start + length <= regionStart + regionLength || length == 0) {
+            return getRegion(r).slice((int) (start - regionStart), length).asReadOnlyBuffer();
+        }
+        int first = (int) (regionStart + regionLength - start);
+        ByteBuffer range = ByteBuffer.allocate(length);
+        range.put(getRegion(r).slice((int) (start - regionStart), first));
+        range.put(getRegion(r + 1).slice(0, length - first));
+        return range.flip().asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer getRegion(int r) throws IOException {
+        if (this.regions[r] == null) {
+            long regionStart = (long) r * CHUNKS_PER_REGION * this.chunkSize;
+            long regionSize = Math.min((long) CHUNKS_PER_REGION * this.chunkSize, this.size - regionStart);
+            this.regions[r] = this.channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+        }
+        return this.regions[r];
+    }
+
+    /**
+     *
+     * @return size of a chunk
+     */
+    protected int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Sets where the chunks start, for sources that do not cut the file at multiples of the chunk size
+     * @param offsets offset of every chunk followed by the size of the file
+     */
+    protected void setOffsets(long[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     *
+     * @return size of every chunk shorter than the chunk size by chunk number, null if the file is cut at
+     *         multiples of the chunk size
+     */
+    public Map<Integer, Integer> getManifest() {
+        if (this.offsets == null) {
+            return null;
+        }
+        Map<Integer, Integer> manifest = new HashMap<>();
+        for (int i = 0; i + 1 < this.offsets.length; i++) {
+            int length = (int) (this.offsets[i + 1] - this.offsets[i]);
+            if (length != this.chunkSize) {
+                manifest.put(i, length);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     *
+     * @param chunkNo
+     * @return chunk of the previous version of the file with the same contents, null if the chunk is new
+     */
+    public Chunk getMatch(int chunkNo) {
+        return null;
+    }
+
+    /**
+     * Closes the channel, chunks already returned stay valid while referenced
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,345 @@
+package peer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Content addressed store of the chunks kept by the peer. The bytes of a chunk are written once under
+ * cas/hash and every stored chunk with that content is a hard link to them, so the path fileId/chunkNo
+ * read by the rest of the peer does not change. Contents are reference counted and the current size
+ * of the peer counts each of them once. The bytes of a content no longer referenced are kept for a while,
+ * so a new version of a file backed up right after the old one was deleted can still reference them.
+ * The counts of a content are guarded by a lock picked by its hash and the files are written and linked
+ * outside of it, so chunks with different contents are stored at the same time
+ */
+public class ChunkStore {
+    private static final long GRACE = 60000;
+    private static final int LOCKS = 64;
+
+    private Path folder;
+    private ConcurrentHashMap<String, Content> contents = new ConcurrentHashMap<>();
+    private Object[] locks = new Object[LOCKS];
+    private AtomicLong referenced = new AtomicLong(0);
+
+    /**
+     * Bytes of a chunk and the number of stored chunks linked to them
+     */
+    private static class Content {
+        private int size;
+        private int references = 0;
+        private ScheduledFuture<?> removal;
+        // completed once the bytes are on the disk, until then no chunk is linked to them
+        private CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Content(int size) {
+            this.size = size;
+        }
+    }
+
+    public ChunkStore(String serverName) {
+        this.folder = Path.of(serverName + "/cas");
+        for (int i = 0; i < LOCKS; i++) {
+            this.locks[i] = new Object();
+        }
+        try {
+            Files.createDirectories(this.folder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *
+     * @param chunk
+     * @return hex SHA-256 of the remaining bytes of the chunk, its position is not changed
+     */
+    static String hash(ByteBuffer chunk) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(chunk.duplicate());
+        StringBuilder out = new StringBuilder(new BigInteger(1, digest.digest()).toString(16));
+        while (out.length() < 64) {
+            out.insert(0, '0');
+        }
+        return out.toString();
+    }
+
+    /**
+     *
+     * @param hash
+     * @return true if the bytes of the content are stored
+     */
+    public boolean contains(String hash) {
+        return hash != null && this.contents.containsKey(hash);
+    }
+
+    /**
+     *
+     * @param hash
+     * @return size of the content or -1 if it is not stored
+     */
+    public int getSize(String hash) {
+        Content content = hash == null ? null : this.contents.get(hash);
+        return content == null ? -1 : content.size;
+    }
+
+    /**
+     * Stores a chunk, the bytes are only written if the content is new. Once it returns true the bytes
+     * are complete on the disk and linked at the path
+     * @param hash content of the chunk
+     * @param body bytes of the chunk, may be null if the content is already stored
+     * @param path where the chunk is read from by the rest of the peer
+     * @param reserved bytes reserved for the chunk, committed if the content is new and released otherwise
+     * @return false if the content is not stored and there is no body or no space for it, or it could not be written
+     */
+    public boolean store(String hash, byte[] body, Path path, long reserved) {
+        StorageQuota quota = Peer.getServer().getQuota();
+        Content c;
+        boolean created = false;
+        synchronized (lock(hash)) {
+            c = this.contents.get(hash);
+            if (c == null) {
+                // the content may have been removed since the space was reserved
+                if (body == null || !quota.reserve(body.length - reserved)) {
+                    quota.release(reserved);
+                    return false;
+                }
+                c = new Content(body.length);
+                this.contents.put(hash, c);
+                quota.commit(c.size);
+                created = true;
+            } else {
+                quota.release(reserved);
+            }
+            // the reference keeps the content from being freed while it is written and linked
+            reference(c);
+        }
+        Path content = this.folder.resolve(hash);
+        if (created) {
+            try (FileChannel channel = FileChannel.open(content, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                c.written.complete(null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                discard(hash, c, e);
+                return false;
+            }
+        } else if (!awaitWritten(c)) {
+            unreference(hash, c);
+            return false;
+        }
+        try {
+            Files.deleteIfExists(path);
+            Files.createLink(path, content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            unreference(hash, c);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for another store to write the bytes of the content
+     * @param c
+     * @return false if they could not be written
+     */
+    private static boolean awaitWritten(Content c) {
+        try {
+            c.written.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Undoes a content whose bytes could not be written, the stores waiting for it give up
+     * @param hash
+     * @param c
+     * @param cause
+     */
+    private void discard(String hash, Content c, IOException cause) {
+        synchronized (lock(hash)) {
+            c.references--;
+            this.referenced.addAndGet(-c.size);
+            if (this.contents.remove(hash, c)) {
+                Peer.getServer().getQuota().free(c.size);
+            }
+            try {
+                Files.deleteIfExists(this.folder.resolve(hash));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        c.written.completeExceptionally(cause);
+    }
+
+    private Object lock(String hash) {
+        return this.locks[(hash.hashCode() & 0x7fffffff) % LOCKS];
+    }
+
+    private void reference(Content c) {
+        c.references++;
+        this.referenced.addAndGet(c.size);
+        if (c.removal != null) {
+            c.removal.cancel(false);
+            c.removal = null;
+        }
+    }
+
+    /**
+     * Drops a reference, the bytes of the content are removed after a while if no other chunk references them
+     * @param hash
+     * @param c
+     */
+    private void unreference(String hash, Content c) {
+        synchronized (lock(hash)) {
+            if (c.references == 0) {
+                return;
+            }
+            c.references--;
+            this.referenced.addAndGet(-c.size);
+            if (c.references == 0 && this.contents.get(hash) == c) {
+                c.removal = Peer.getServer().getPool().schedule(() -> free(hash), GRACE, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Counts a chunk recovered from the metadata of the last session, chunks stored before the store
+     * existed are plain files and only count for the current size
+     * @param chunk
+     */
+    void recovered(Chunk chunk) {
+        if (chunk.getHash() == null) {
+            Peer.getServer().getQuota().charge(chunk.getSize());
+            return;
+        }
+        synchronized (lock(chunk.getHash())) {
+            Content c = this.contents.get(chunk.getHash());
+            if (c == null) {
+                c = new Content(chunk.getSize());
+                c.written.complete(null);
+                this.contents.put(chunk.getHash(), c);
+                Peer.getServer().getQuota().charge(c.size);
+            }
+            reference(c);
+        }
+    }
+
+    /**
+     * Drops the reference of a chunk whose link was deleted, the bytes of the content are removed
+     * after a while if no other chunk references them
+     * @param chunk
+     */
+    void release(Chunk chunk) {
+        if (chunk.getHash() == null) {
+            Peer.getServer().getQuota().free(chunk.getSize());
+            return;
+        }
+        Content c = this.contents.get(chunk.getHash());
+        if (c != null) {
+            unreference(chunk.getHash(), c);
+        }
+    }
+
+    /**
+     * Removes the bytes of the content now if it is not referenced
+     * @param hash
+     * @return size freed
+     */
+    int free(String hash) {
+        if (hash == null) {
+            return 0;
+        }
+        synchronized (lock(hash)) {
+            Content c = this.contents.get(hash);
+            if (c == null || c.references > 0) {
+                return 0;
+            }
+            if (c.removal != null) {
+                c.removal.cancel(false);
+            }
+            this.contents.remove(hash);
+            try {
+                Files.deleteIfExists(this.folder.resolve(hash));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Peer.getServer().getQuota().free(c.size);
+            return c.size;
+        }
+    }
+
+    /**
+     * Removes the bytes of every content that is not referenced now, used when space is needed
+     * @return size freed
+     */
+    long purge() {
+        long freed = 0;
+        for (String hash : this.contents.keySet()) {
+            freed += free(hash);
+        }
+        return freed;
+    }
+
+    /**
+     * Deletes the files of contents that no chunk references, left by a session that ended during the grace period
+     */
+    void sweep() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.folder)) {
+            for (Path file : files) {
+                String hash = file.getFileName().toString();
+                synchronized (lock(hash)) {
+                    if (!this.contents.containsKey(hash)) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *
+     * @return number of contents, references to them and bytes not stored again thanks to the references
+     */
+    public String getStats() {
+        long stored = 0;
+        int references = 0;
+        for (Content c : this.contents.values()) {
+            stored += c.size;
+            references += c.references;
+        }
+        return this.contents.size() + " contents, " + references + " references, " + Math.max(0, this.referenced.get() - stored) + " bytes deduplicated";
+    }
+}
@@ -0,0 +1,90 @@
+package peer;
+
+/**
+ * Bounds the number of requests in flight. The window grows by one per answer until the threshold and
+ * by one per round trip after it, it is halved when requests have to be sent again and drops to its
+ * minimum when one is given up on
+ */
+public class CongestionWindow {
+    private static final int MIN_WINDOW = 1;
+
+    private int maxWindow;
+    private int inFlight = 0;
+    private double window;
+    private double threshold;
+    private double smoothedRtt = -1;
+    private long lastDecrease = 0;
+
+    public CongestionWindow(int initialWindow, int maxWindow) {
+        this.window = initialWindow;
+        this.threshold = maxWindow;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Takes a place in the window for a new request
+     * @return false if the window is full
+     */
+    public synchronized boolean tryAcquire() {
+        if (this.inFlight >= (int) this.window) {
+            return false;
+        }
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases the place of an answered request and grows the window, unless the answer took much longer than usual
+     * @param rtt round trip time of the request in milliseconds, negative if it was sent more than once
+     */
+    public synchronized void acked(long rtt) {
+        this.inFlight--;
+        boolean congested = false;
+        if (rtt >= 0) {
+            if (this.smoothedRtt < 0) {
+                this.smoothedRtt = rtt;
+            } else {
+                congested = rtt > 2 * this.smoothedRtt;
+                this.smoothedRtt = 0.875 * this.smoothedRtt + 0.125 * rtt;
+            }
+        }
+        if (!congested) {
+            if (this.window < this.threshold) {
+                this.window += 1;
+            } else {
+                this.window += 1 / this.window;
+            }
+            this.window = Math.min(this.window, this.maxWindow);
+        }
+    }
+
+    /**
+     * Called when a request has to be sent again, halves the window at most once per round trip
+     */
+    public synchronized void retried() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastDecrease > Math.max(this.smoothedRtt, 1000)) {
+            this.threshold = Math.max(MIN_WINDOW, this.window / 2);
+            this.window = this.threshold;
+            this.lastDecrease = now;
+        }
+    }
+
+    /**
+     * Releases the place of a request that was given up on, the window drops to its minimum
+     */
+    public synchronized void gaveUp() {
+        this.inFlight--;
+        this.threshold = Math.max(MIN_WINDOW, this.window / 2);
+        this.window = MIN_WINDOW;
+        this.lastDecrease = System.currentTimeMillis();
+    }
+
+    /**
+     *
+     * @return current size of the window
+     */
+    public synchronized int getWindow() {
+        return (int) this.window;
+    }
+}
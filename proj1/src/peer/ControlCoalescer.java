@@ -0,0 +1,84 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the small control messages sent to a channel during a short window and packs them
+ * into a single datagram, the headers are separated by CRLF and the last one ends with CRLFCRLF
+ */
+public class ControlCoalescer {
+    private static final int MAX_HEADERS = 200;
+    private static final int MAX_SIZE = 60000;
+    private MulticastDispatcher dispatcher;
+    private long window;
+    private ScheduledExecutorService pool;
+    private ByteBuffer pending = ByteBuffer.allocate(MAX_SIZE + 2);
+    private int count = 0;
+    private boolean scheduled = false;
+
+    /**
+     * @param dispatcher channel where the datagrams are sent
+     * @param window time in milliseconds that a message waits for others, 0 sends every message on its own
+     * @param pool used to send the datagram when the window ends
+     */
+    public ControlCoalescer(MulticastDispatcher dispatcher, long window, ScheduledExecutorService pool) {
+        this.dispatcher = dispatcher;
+        this.window = window;
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a message to the next datagram
+     * @param message a complete header ending with CRLFCRLF and without body
+     */
+    public void offer(byte[] message) {
+        if (this.window <= 0) {
+            this.dispatcher.send(ByteBuffer.wrap(message));
+            return;
+        }
+        synchronized (this) {
+            if (this.pending.position() + message.length > MAX_SIZE) {
+                flush();
+            }
+            if (this.count > 0) {
+                this.pending.put((byte) ' ');
+            }
+            // the last CRLF is only written when the datagram is sent
+            this.pending.put(message, 0, message.length - 2);
+            this.count++;
+            if (this.count >= MAX_HEADERS) {
+                flush();
+            } else if (!this.scheduled) {
+                this.scheduled = true;
+                this.pool.schedule(this::timedFlush, this.window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Ends the window, a flush caused by size leaves the timer in place so there is never more than one
+     */
+    private synchronized void timedFlush() {
+        this.scheduled = false;
+        flush();
+    }
+
+    /**
+     * Sends the pending messages as one datagram
+     */
+    private synchronized void flush() {
+        if (this.count == 0) {
+            return;
+        }
+        this.pending.put((byte) '\r').put((byte) '\n');
+        this.pending.flip();
+        // the datagram is sent later by the send queue, it gets its own copy of the pending messages
+        byte[] datagram = new byte[this.pending.remaining()];
+        this.pending.get(datagram);
+        this.dispatcher.send(ByteBuffer.wrap(datagram));
+        this.pending.clear();
+        this.count = 0;
+    }
+}
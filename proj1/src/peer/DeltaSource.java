@@ -0,0 +1,208 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Exposes a new version of a file as chunks that line up with the chunks of the previous version wherever
+ * the data did not change, like rsync does. Every full chunk sent has a weak rolling checksum, the new version
+ * is scanned one byte at a time for windows whose checksum matches an old chunk and a match is confirmed with
+ * the hash of the old chunk. Matched chunks keep the contents of the old ones, so they are sent as references,
+ * and the bytes in between are cut in chunks of up to the chunk size. Chunks shorter than the chunk size are
+ * listed in the manifest of the file, which is enough to find the offset of every chunk when restoring
+ */
+public class DeltaSource extends ChunkSource {
+    private static final int SCAN_BUFFER = 8 * 1024 * 1024;
+
+    private Chunk[] matches;
+    private int matched = 0;
+
+    /**
+     *
+     * @param path new version of the file
+     * @param chunkSize
+     * @param previous chunks of the previous version
+     * @throws IOException
+     */
+    public DeltaSource(Path path, int chunkSize, Iterable<Chunk> previous) throws IOException {
+        super(path, chunkSize);
+        Map<Integer, List<Chunk>> signatures = new HashMap<>();
+        for (Chunk c : previous) {
+            if (c.getChecksum() != null && c.getHash() != null) {
+                signatures.computeIfAbsent(c.getChecksum(), k -> new ArrayList<>(1)).add(c);
+            }
+        }
+        scan(path, signatures);
+    }
+
+    /**
+     * Weak checksum of rsync, the sums of the bytes and of their positions from the end, 16 bits each
+     * @param chunk
+     * @return the checksum of the remaining bytes, the position of the chunk is not changed
+     */
+    static int checksum(ByteBuffer chunk) {
+        int a = 0;
+        int b = 0;
+        int length = chunk.remaining();
+        for (int i = 0; i < length; i++) {
+            int x = chunk.get(chunk.position() + i) & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Splits the file in matched and new chunks
+     * @param path
+     * @param signatures old chunks by weak checksum
+     * @throws IOException
+     */
+    private void scan(Path path, Map<Integer, List<Chunk>> signatures) throws IOException {
+        int block = getChunkSize();
+        long size = getSize();
+        long[] offsets = new long[16];
+        Chunk[] matches = new Chunk[16];
+        // most windows match no chunk, a bit per 16 bit tag of the checksums rules them out without a map lookup
+        long[] tags = new long[1 << 10];
+        for (int sum : signatures.keySet()) {
+            tags[tag(sum) >>> 6] |= 1L << tag(sum);
+        }
+        int count = 0;
+        long literal = 0;
+        long position = 0;
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            ByteBuffer window = ByteBuffer.allocate(Math.max(SCAN_BUFFER, 2 * block));
+            long windowStart = 0;
+            window.limit(0);
+            int a = 0;
+            int b = 0;
+            boolean rolled = false;
+            while (!signatures.isEmpty() && position + block <= size) {
+                // the window holds the bytes from the position to one past the end of the block
+                if (position + block + 1 > windowStart + window.limit() && windowStart + window.limit() < size) {
+                    window.position((int) (position - windowStart));
+                    window.compact();
+                    windowStart = position;
+                    while (window.hasRemaining() && channel.read(window, windowStart + window.position()) > 0) {
+                    }
+                    window.flip();
+                }
+                int at = (int) (position - windowStart);
+                if (!rolled) {
+                    int sum = checksum(window.duplicate().position(at).limit(at + block));
+                    a = sum & 0xffff;
+                    b = sum >>> 16;
+                    rolled = true;
+                }
+                int sum = (a & 0xffff) | (b << 16);
+                Chunk match = null;
+                if ((tags[tag(sum) >>> 6] & (1L << tag(sum))) != 0) {
+                    match = find(signatures.get(sum), window.duplicate().position(at).limit(at + block));
+                }
+                if (match != null) {
+                    offsets = grow(offsets, count);
+                    matches = grow(matches, count);
+                    count = literal(offsets, matches, count, literal, position, block);
+                    offsets[count] = position;
+                    matches[count++] = match;
+                    this.matched++;
+                    position += block;
+                    literal = position;
+                    rolled = false;
+                    continue;
+                }
+                if (position + block == size) {
+                    break;
+                }
+                int out = window.get(at) & 0xff;
+                int in = window.get(at + block) & 0xff;
+                a = a - out + in;
+                b = b - block * out + a;
+                position++;
+                // new bytes are cut as soon as they fill a chunk, so the scan never keeps more than a chunk behind
+                if (position - literal >= block) {
+                    offsets = grow(offsets, count);
+                    matches = grow(matches, count);
+                    offsets[count++] = literal;
+                    literal += block;
+                }
+            }
+        }
+        offsets = grow(offsets, count + (int) ((size - literal) / block) + 2);
+        matches = grow(matches, offsets.length);
+        count = literal(offsets, matches, count, literal, size, block);
+        // like a fixed size backup, the file ends with a chunk smaller than the chunk size
+        if (count == 0 || size - offsets[count - 1] == block) {
+            offsets[count++] = size;
+        }
+        offsets[count] = size;
+        setOffsets(Arrays.copyOf(offsets, count + 1));
+        this.matches = Arrays.copyOf(matches, count);
+    }
+
+    private static int tag(int sum) {
+        return (sum ^ (sum >>> 16)) & 0xffff;
+    }
+
+    /**
+     * Adds the new bytes between two offsets as chunks of up to the block size
+     * @return number of chunks
+     */
+    private static int literal(long[] offsets, Chunk[] matches, int count, long from, long to, int block) {
+        for (long start = from; start < to; start += block) {
+            offsets[count] = start;
+            matches[count++] = null;
+        }
+        return count;
+    }
+
+    private static long[] grow(long[] array, int needed) {
+        return needed + 2 < array.length ? array : Arrays.copyOf(array, Math.max(array.length * 2, needed + 3));
+    }
+
+    private static Chunk[] grow(Chunk[] array, int needed) {
+        return needed + 2 < array.length ? array : Arrays.copyOf(array, Math.max(array.length * 2, needed + 3));
+    }
+
+    /**
+     * Confirms a checksum match by encoding the window like the old chunk was and comparing the hashes
+     * @param candidates old chunks with the checksum of the window
+     * @param window
+     * @return the matched chunk or null
+     */
+    private static Chunk find(List<Chunk> candidates, ByteBuffer window) {
+        if (candidates == null) {
+            return null;
+        }
+        for (Chunk c : candidates) {
+            ByteBuffer encoded = c.getCodec().encode(window, window.remaining());
+            if (encoded != null && ChunkStore.hash(encoded).equals(c.getHash())) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Chunk getMatch(int chunkNo) {
+        return this.matches[chunkNo];
+    }
+
+    /**
+     *
+     * @return number of chunks that match a chunk of the previous version
+     */
+    public int getMatched() {
+        return this.matched;
+    }
+}
@@ -0,0 +1,261 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Restores an erasure coded file group by group, keeping a bounded window of GETCHUNK messages for shards.
+ * Only the data shards of a group are requested at first, so a restore with every peer up costs the same as
+ * with replication. When a shard has to be requested again the next parity shard of its group takes its place
+ * in the window, and as soon as any k shards of a group arrive the missing data shards are rebuilt and written
+ */
+public class ErasureRestore {
+    private static final int MAX_WINDOW = 128;
+    private static final int INITIAL_WINDOW = 8;
+
+    private String fileId;
+    private RestoreFile restoring;
+    private int dataShards;
+    private int parityShards;
+    private long size;
+    private int chunkSize;
+    private int groups;
+    private ReedSolomon codec;
+    private HashMap<Integer, Group> active = new HashMap<>();
+    private boolean[] done;
+    private int decodedGroups = 0;
+    private int nextGroup = 0;
+    private int nextShard = 0;
+    private CongestionWindow window = new CongestionWindow(INITIAL_WINDOW, MAX_WINDOW);
+    private HashMap<Integer, Long> pending = new HashMap<>();
+    private int retries = 0;
+    private int gaveUp = 0;
+    private int rebuilt = 0;
+    private long bytes = 0;
+    private long start;
+
+    /**
+     * Shards of a group received so far
+     */
+    private static class Group {
+        private byte[][] shards;
+        private int received = 0;
+        private int nextParity = 0;
+        private int failed = 0;
+
+        Group(int shards) {
+            this.shards = new byte[shards][];
+        }
+    }
+
+    /**
+     *
+     * @param file erasure coded file
+     * @param restoring file being written, with a chunk for every data shard
+     * @param chunkSize
+     */
+    public ErasureRestore(File file, RestoreFile restoring, int chunkSize) {
+        this.fileId = file.getFileId();
+        this.restoring = restoring;
+        this.dataShards = file.getDataShards();
+        this.parityShards = file.getParityShards();
+        this.size = file.getSize();
+        this.chunkSize = chunkSize;
+        this.groups = ErasureSource.getGroups(restoring.getNumberOfChunks(), this.dataShards);
+        this.codec = new ReedSolomon(this.dataShards, this.parityShards);
+        this.done = new boolean[this.groups];
+    }
+
+    /**
+     * Sends the first window of requests
+     */
+    public synchronized void start() {
+        this.start = System.currentTimeMillis();
+        fill();
+    }
+
+    private int getDataInGroup(int group) {
+        return ErasureSource.getDataInGroup(this.restoring.getNumberOfChunks(), this.dataShards, group);
+    }
+
+    private int getFirstShard(int group) {
+        return group * (this.dataShards + this.parityShards);
+    }
+
+    /**
+     *
+     * @param dataChunk
+     * @return size of the data chunk, the last chunk of the file is shorter
+     */
+    private int getChunkLength(int dataChunk) {
+        return (int) Math.max(0, Math.min(this.chunkSize, this.size - (long) dataChunk * this.chunkSize));
+    }
+
+    /**
+     * Requests the data shards of the next groups until the window is full
+     */
+    private void fill() {
+        while (this.nextGroup < this.groups && this.window.tryAcquire()) {
+            this.active.computeIfAbsent(this.nextGroup, g -> new Group(getDataInGroup(g) + this.parityShards));
+            request(getFirstShard(this.nextGroup) + this.nextShard++);
+            if (this.nextShard == getDataInGroup(this.nextGroup)) {
+                this.nextGroup++;
+                this.nextShard = 0;
+            }
+        }
+    }
+
+    /**
+     * Sends the request of a shard that already has a place in the window
+     * @param shardNo
+     */
+    private void request(int shardNo) {
+        Peer peer = Peer.getServer();
+        this.pending.put(shardNo, System.currentTimeMillis());
+        byte[] message = MessageType.createGetchunk("1.0", (int) peer.getPeerId(), this.fileId, shardNo);
+        peer.RestoreAux(1, message, this.fileId, shardNo, 1);
+    }
+
+    /**
+     *
+     * @param shardNo
+     * @return true if the shard arrived or its group was already rebuilt, so it does not need to be requested again
+     */
+    public synchronized boolean has(int shardNo) {
+        int group = shardNo / (this.dataShards + this.parityShards);
+        if (group >= this.groups || this.done[group]) {
+            return true;
+        }
+        Group g = this.active.get(group);
+        return g != null && g.shards[shardNo - getFirstShard(group)] != null;
+    }
+
+    /**
+     * Keeps a received shard and rebuilds its group once k shards are there
+     * @param shardNo
+     * @param body
+     * @param length
+     */
+    public synchronized void received(int shardNo, byte[] body, int length) {
+        int group = shardNo / (this.dataShards + this.parityShards);
+        int index = shardNo - getFirstShard(group);
+        Group g = group < this.groups ? this.active.get(group) : null;
+        if (g == null || this.done[group] || index >= g.shards.length || g.shards[index] != null) {
+            return;
+        }
+        int data = getDataInGroup(group);
+        int expected = index < data ? getChunkLength(group * this.dataShards + index) : getChunkLength(group * this.dataShards);
+        if (length != expected) {
+            return;
+        }
+        Peer.getServer().getRetransmissions().cancel("GETCHUNK" + this.fileId + shardNo);
+        Long sent = this.pending.remove(shardNo);
+        if (sent != null) {
+            this.window.acked(sent > 0 ? System.currentTimeMillis() - sent : -1);
+        }
+        this.bytes += length;
+        g.shards[index] = length == body.length ? body : Arrays.copyOf(body, length);
+        g.received++;
+        if (index < data) {
+            this.restoring.write(group * this.dataShards + index, ByteBuffer.wrap(g.shards[index]));
+        }
+        if (g.received >= data) {
+            rebuild(group, g, data);
+        }
+        fill();
+    }
+
+    /**
+     * Decodes the data shards of the group that did not arrive, writes them and forgets the group
+     * @param group
+     * @param g
+     * @param data
+     */
+    private void rebuild(int group, Group g, int data) {
+        int length = getChunkLength(group * this.dataShards);
+        boolean missing = false;
+        for (int i = 0; i < data; i++) {
+            missing |= g.shards[i] == null;
+        }
+        if (missing) {
+            ReedSolomon codec = data == this.dataShards ? this.codec : new ReedSolomon(data, this.parityShards);
+            byte[][] padded = new byte[g.shards.length][];
+            for (int i = 0; i < padded.length; i++) {
+                padded[i] = g.shards[i] == null ? null : Arrays.copyOf(g.shards[i], length);
+            }
+            codec.decode(padded, length);
+            for (int i = 0; i < data; i++) {
+                if (g.shards[i] == null) {
+                    int chunkNo = group * this.dataShards + i;
+                    this.restoring.write(chunkNo, ByteBuffer.wrap(padded[i], 0, getChunkLength(chunkNo)));
+                    this.rebuilt++;
+                }
+            }
+        }
+        this.done[group] = true;
+        this.active.remove(group);
+        this.decodedGroups++;
+        // requests still in flight for the group are no longer needed
+        for (int i = 0; i < g.shards.length; i++) {
+            int shardNo = getFirstShard(group) + i;
+            if (this.pending.remove(shardNo) != null) {
+                Peer.getServer().getRetransmissions().cancel("GETCHUNK" + this.fileId + shardNo);
+                this.window.acked(-1);
+            }
+        }
+        if (this.decodedGroups % 5 == 0 || this.decodedGroups == this.groups) {
+            System.out.println("Restore " + this.decodedGroups * 100 / this.groups + "% done");
+        }
+        if (this.decodedGroups == this.groups) {
+            Peer.getServer().getFileRestoring().remove(this.fileId, this.restoring);
+            long time = Math.max(System.currentTimeMillis() - this.start, 1);
+            System.out.println("Ended Restore of file " + this.restoring.getPath() + " in " + time + " ms (" + this.bytes / time + " KB/s, "
+                    + this.retries + " retries, " + this.gaveUp + " gave up, " + this.rebuilt + " chunks rebuilt)");
+        }
+    }
+
+    /**
+     * Called when the request for the shard has to be sent again. The first time, the shard gives its place
+     * in the window to the next parity shard of its group, it is still requested and used if it arrives first
+     * @param shardNo
+     */
+    public synchronized void retried(int shardNo) {
+        this.retries++;
+        this.window.retried();
+        int group = shardNo / (this.dataShards + this.parityShards);
+        Group g = this.active.get(group);
+        if (g != null && g.nextParity < this.parityShards && this.pending.remove(shardNo) != null) {
+            request(getFirstShard(group) + getDataInGroup(group) + g.nextParity++);
+        } else {
+            // retransmitted requests are not used to measure the round trip time
+            this.pending.computeIfPresent(shardNo, (k, v) -> -1L);
+        }
+    }
+
+    /**
+     * Called when the shard did not arrive after every retry
+     * @param shardNo
+     */
+    public synchronized void gaveUp(int shardNo) {
+        this.gaveUp++;
+        int group = shardNo / (this.dataShards + this.parityShards);
+        Group g = this.active.get(group);
+        if (g != null && ++g.failed == this.parityShards + 1) {
+            System.out.println("Group " + group + " of file " + this.restoring.getPath() + " could not be restored, more than "
+                    + this.parityShards + " of its shards are missing");
+            // the restore ends and the partial file is deleted, unless a newer restore of the file replaced it
+            if (Peer.getServer().getFileRestoring().remove(this.fileId, this.restoring)) {
+                this.restoring.abort();
+                long time = Math.max(System.currentTimeMillis() - this.start, 1);
+                System.out.println("Restore of file " + this.restoring.getPath() + " failed after " + time + " ms ("
+                        + this.retries + " retries, " + this.gaveUp + " gave up)");
+            }
+            return;
+        }
+        if (this.pending.remove(shardNo) != null) {
+            this.window.gaveUp();
+            fill();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Exposes a file as the shards of an erasure coded backup. Every k chunks of the file form a group
+ * that is sent as k+m shards numbered from group * (k + m), the data shards are the chunks themselves
+ * and the parity shards are computed when the group is first read. The last group may have less
+ * than k data shards, it still has m parity shards
+ */
+public class ErasureSource extends ChunkSource {
+    private int dataShards;
+    private int parityShards;
+    private ReedSolomon codec;
+    private int parityGroup = -1;
+    private byte[][] parity;
+
+    /**
+     *
+     * @param path
+     * @param chunkSize
+     * @param dataShards k
+     * @param parityShards m
+     * @throws IOException
+     */
+    public ErasureSource(Path path, int chunkSize, int dataShards, int parityShards) throws IOException {
+        super(path, chunkSize);
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.codec = new ReedSolomon(dataShards, parityShards);
+    }
+
+    /**
+     *
+     * @param chunks number of data chunks of the file
+     * @param dataShards
+     * @return number of groups of the file
+     */
+    static int getGroups(int chunks, int dataShards) {
+        return (chunks + dataShards - 1) / dataShards;
+    }
+
+    /**
+     *
+     * @param chunks number of data chunks of the file
+     * @param dataShards
+     * @param group
+     * @return number of data shards in the group
+     */
+    static int getDataInGroup(int chunks, int dataShards, int group) {
+        return Math.min(dataShards, chunks - group * dataShards);
+    }
+
+    /**
+     *
+     * @return number of data chunks of the file
+     */
+    public int getDataChunks() {
+        return super.getNumChunks();
+    }
+
+    /**
+     *
+     * @return number of shards sent for the file
+     */
+    @Override
+    public int getNumChunks() {
+        int chunks = getDataChunks();
+        int groups = getGroups(chunks, this.dataShards);
+        return (groups - 1) * (this.dataShards + this.parityShards) + getDataInGroup(chunks, this.dataShards, groups - 1) + this.parityShards;
+    }
+
+    /**
+     * Data shards are slices of the mapped file, parity shards are heap buffers
+     * @param shardNo
+     * @return read only buffer with the shard
+     * @throws IOException
+     */
+    @Override
+    public synchronized ByteBuffer getChunk(int shardNo) throws IOException {
+        int group = shardNo / (this.dataShards + this.parityShards);
+        int index = shardNo % (this.dataShards + this.parityShards);
+        int data = getDataInGroup(getDataChunks(), this.dataShards, group);
+        if (index < data) {
+            return super.getChunk(group * this.dataShards + index);
+        }
+        if (group != this.parityGroup) {
+            this.parity = encodeGroup(group, data);
+            this.parityGroup = group;
+        }
+        return ByteBuffer.wrap(this.parity[index - data]).asReadOnlyBuffer();
+    }
+
+    private byte[][] encodeGroup(int group, int data) throws IOException {
+        byte[][] shards = new byte[data][];
+        for (int i = 0; i < data; i++) {
+            ByteBuffer chunk = super.getChunk(group * this.dataShards + i);
+            shards[i] = new byte[chunk.remaining()];
+            chunk.get(shards[i]);
+        }
+        ReedSolomon codec = data == this.dataShards ? this.codec : new ReedSolomon(data, this.parityShards);
+        return codec.encode(shards, shards[0].length);
+    }
+}
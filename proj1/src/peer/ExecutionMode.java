@@ -0,0 +1,99 @@
+package peer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used for the handlers and for blocking transfers, chosen with -Dpeer.threads.
+ * In "platform" mode (the default) handlers run on a bounded set of workers and blocking work on the
+ * peer pool. In "virtual" mode every handler and blocking transfer gets its own virtual thread, timers
+ * stay on the peer pool and only hand the work over. Virtual threads are looked up at runtime, on a
+ * JVM without them a platform thread is started per task instead
+ */
+public class ExecutionMode {
+    private boolean perTask;
+    private ThreadFactory factory;
+    private Executor blocking;
+
+    private ExecutionMode(boolean perTask, ThreadFactory factory, Executor blocking) {
+        this.perTask = perTask;
+        this.factory = factory;
+        this.blocking = blocking;
+    }
+
+    /**
+     * Creates the mode set on the command line
+     * @param pool peer pool, runs blocking work in platform mode
+     * @return the execution mode
+     */
+    static ExecutionMode fromProperties(Executor pool) {
+        String mode = System.getProperty("peer.threads", "platform");
+        if (!mode.equals("virtual")) {
+            return new ExecutionMode(false, platformFactory(false), pool);
+        }
+        ThreadFactory factory = virtualFactory();
+        if (factory == null) {
+            System.out.println("Virtual threads are not available on this JVM, using a platform thread per task");
+            factory = platformFactory(true);
+        } else {
+            System.out.println("Using virtual threads");
+        }
+        ThreadFactory perTask = factory;
+        return new ExecutionMode(true, factory, task -> perTask.newThread(task).start());
+    }
+
+    /**
+     *
+     * @return factory of virtual threads or null if the JVM has none
+     */
+    private static ThreadFactory virtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformFactory(boolean daemon) {
+        AtomicInteger count = new AtomicInteger(0);
+        return task -> {
+            Thread thread = new Thread(task, "peer-" + count.getAndIncrement());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+
+    /**
+     *
+     * @return true if every task gets its own thread
+     */
+    public boolean isPerTask() {
+        return this.perTask;
+    }
+
+    /**
+     *
+     * @return factory of the threads of handlers and transfers
+     */
+    public ThreadFactory getThreadFactory() {
+        return this.factory;
+    }
+
+    /**
+     * Starts a thread for a long running transfer, like a TCP connection
+     * @param task
+     */
+    public void start(Runnable task) {
+        this.factory.newThread(task).start();
+    }
+
+    /**
+     * Runs blocking work, like a disk read, outside the timer that triggered it
+     * @param task
+     */
+    public void execute(Runnable task) {
+        this.blocking.execute(task);
+    }
+}
@@ -2,25 +2,16 @@ package peer;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
-
 /**
  * Used to store the metadata of the local file to backup and make operations on its chunks
  */
@@ -34,6 +25,11 @@ public class File {
     public AtomicInteger doneC = new AtomicInteger(0);
     public Long totalC = 0L;
     public long initTime = System.currentTimeMillis();
+    private BackupSender sender = null;
+    private int dataShards = 0;
+    private int parityShards = 0;
+    private long size = 0;
+    private Map<Integer, Integer> manifest;
 
     public File(String name, int repDegree) throws IOException {
         this.name = name;
@@ -41,17 +37,11 @@ public class File {
         BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
         this.fileId = getHashedString(name + attr.size() + attr.lastModifiedTime().toMillis());
         this.time = System.currentTimeMillis();
-
-        Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.ldata"));
-        Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.ldata/" + this.fileId));
     }
-    public File(String name, int repDegree, String fileId) throws IOException {
+    public File(String name, int repDegree, String fileId) {
         this.name = name;    
         this.fileId = fileId;
         this.time = System.currentTimeMillis();
-
-        Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.ldata"));
-        Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.ldata/" + this.fileId));
     }
 
     /**
@@ -127,6 +117,96 @@ public class File {
         this.numChunks = numChunks;
     }
 
+    /**
+     *
+     * @return the sender used on the last backup of the file
+     */
+    public BackupSender getSender() {
+        return this.sender;
+    }
+
+    /**
+     * Sets the sender used to backup the file
+     * @param sender
+     */
+    public void setSender(BackupSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Marks the file as backed up with erasure coding, its chunks are then the shards of the groups
+     * @param dataShards k, data shards of a group
+     * @param parityShards m, parity shards of a group
+     * @param size size of the file in bytes
+     */
+    void setErasure(int dataShards, int parityShards, long size) {
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.size = size;
+    }
+
+    /**
+     *
+     * @return true if the file was backed up with erasure coding instead of replication
+     */
+    public boolean isErasureCoded() {
+        return this.dataShards > 0;
+    }
+
+    /**
+     *
+     * @return data shards of a group, 0 for replicated files
+     */
+    public int getDataShards() {
+        return this.dataShards;
+    }
+
+    /**
+     *
+     * @return parity shards of a group, 0 for replicated files
+     */
+    public int getParityShards() {
+        return this.parityShards;
+    }
+
+    /**
+     *
+     * @return size of an erasure coded file in bytes
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     *
+     * @return size of the chunks shorter than the chunk size of a file backed up as a delta, null for other files
+     */
+    public Map<Integer, Integer> getManifest() {
+        return this.manifest;
+    }
+
+    /**
+     * Marks the file as backed up as a delta of its previous version, its chunks do not start at multiples of the chunk size
+     * @param manifest size of every chunk shorter than the chunk size
+     */
+    void setManifest(Map<Integer, Integer> manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Offset of every chunk in the file, as told by the manifest
+     * @param chunks number of chunks
+     * @param chunkSize
+     * @return the offsets followed by the size of the file
+     */
+    long[] getOffsets(int chunks, int chunkSize) {
+        long[] offsets = new long[chunks + 1];
+        for (int i = 0; i < chunks; i++) {
+            offsets[i + 1] = offsets[i] + this.manifest.getOrDefault(i, chunkSize);
+        }
+        return offsets;
+    }
+
     /**
      *
      * @return the hash map that maps the chunk ID to the Chunk instance
@@ -145,7 +225,7 @@ public class File {
     }
 
     /**
-     * Adds the peer to the chunk's peerlist and updates the chunk metadata file
+     * Adds the peer to the chunk's peerlist and appends the chunk metadata to the journal
      * @param chunkNo
      * @param peerId
      */
@@ -154,48 +234,10 @@ public class File {
             Chunk c = this.chunks.get(chunkNo);
             if (!c.getPeerList().containsKey(peerId)) {
                 c.getPeerList().put(peerId, true);
-                StringBuilder sb = new StringBuilder();
-                sb.append((c.getPeerCount() + ";" + c.getRepDegree() + ";" + this.name + "\n"));
-                for (Iterator<Integer> it = c.getPeerList().keys().asIterator(); it.hasNext(); ) {
-                    sb.append(it.next() + ";");
-                }
-
-
-                Path path = Paths.get(Peer.getServer().getServerName() + "/.ldata/" + this.fileId + "/" + chunkNo);
-                AsynchronousFileChannel fileChannel = null;
-                try {
-                    fileChannel = AsynchronousFileChannel.open(
-                            path, WRITE, CREATE);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-                byte out[] = sb.toString().getBytes();
-                ByteBuffer buffer = ByteBuffer.allocate(out.length);
-
-                buffer.put(out);
-                buffer.flip();
-
-                fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                @Override
-                public void completed(Integer result, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                if (this.sender != null) {
+                    this.sender.stored(chunkNo, c.getPeerCount());
                 }
-            });
-                buffer.clear();
+                Peer.getServer().getJournal().localChunk(this.name, c);
             }
         }
     }
@@ -210,13 +252,14 @@ public class File {
                 chunk.getPeerList().remove(peerId);
                 if(chunk.getPeerList().size()==0){
                     chunks.remove(chunk.getChunkNo());
+                    Peer.getServer().getJournal().localChunkDeleted(this.fileId, chunk.getChunkNo());
                 }
             }
         }
     }
 
     /**
-     * rewrites every ldata info of every chunk
+     * appends the metadata of every chunk to the journal
      */
     public void updateChunks(){
         for(Chunk chunk:chunks.values()){
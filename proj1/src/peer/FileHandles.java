@@ -0,0 +1,95 @@
+package peer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every fileId with entries in the chunk maps a number, so a chunk is identified by a long with the number
+ * of its file and its chunkNo instead of a string with both. A file keeps its number while any chunk map has an
+ * entry of it and gives it back with the last one, so the table only holds the files in use. Two files in use
+ * never share a number
+ */
+public class FileHandles {
+    private final ConcurrentHashMap<String, Handle> handles = new ConcurrentHashMap<>();
+    private final Set<Integer> numbers = ConcurrentHashMap.newKeySet();
+    // 0 is left out so no chunk key is 0
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Number of a file and how many entries of the chunk maps use it
+     */
+    private static class Handle {
+        private final int number;
+        private int entries = 0;
+
+        Handle(int number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     *
+     * @param fileId
+     * @param chunkNo
+     * @return key of the chunk, 0 if the file has no entries
+     */
+    long find(String fileId, int chunkNo) {
+        Handle handle = this.handles.get(fileId);
+        return handle == null ? 0 : key(handle.number, chunkNo);
+    }
+
+    /**
+     * Counts a new entry of the file, giving it a number if it has none
+     * @param fileId
+     * @param chunkNo
+     * @return key of the chunk
+     */
+    long acquire(String fileId, int chunkNo) {
+        Handle handle = this.handles.compute(fileId, (k, h) -> {
+            if (h == null) {
+                h = new Handle(nextNumber());
+            }
+            h.entries++;
+            return h;
+        });
+        return key(handle.number, chunkNo);
+    }
+
+    /**
+     * An entry of the file is gone, the number is given back with the last one
+     * @param fileId
+     */
+    void release(String fileId) {
+        this.handles.computeIfPresent(fileId, (k, h) -> {
+            if (--h.entries > 0) {
+                return h;
+            }
+            this.numbers.remove(h.number);
+            return null;
+        });
+    }
+
+    /**
+     *
+     * @return number of files with entries
+     */
+    public int size() {
+        return this.handles.size();
+    }
+
+    /**
+     * Numbers are taken in order, after they wrap around the ones still in use are skipped
+     */
+    private int nextNumber() {
+        int number;
+        do {
+            number = this.next.incrementAndGet();
+        } while (number == 0 || !this.numbers.add(number));
+        return number;
+    }
+
+    private static long key(int number, int chunkNo) {
+        return ((long) number << 32) | (chunkNo & 0xffffffffL);
+    }
+}
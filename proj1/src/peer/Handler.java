@@ -1,73 +1,58 @@
 package peer;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * Used as a worker, processes the received messages and sends the response
  */
 public class Handler implements Runnable {
     private static AtomicInteger skipped = new AtomicInteger(0);
+    // makes the check for shards of the same group and the store of a new shard atomic
+    private static final Object shardLock = new Object();
     static private long time = System.currentTimeMillis();
-    private DatagramPacket packet;
+    private ByteBuffer buffer;
+    private BufferPool buffers;
     private int peerId;
-    private ConcurrentHashMap<String, String> standbyBackupList;
 
-    Handler(DatagramPacket packet, int peerId) {
-        this.packet = packet;
+    Handler(ByteBuffer buffer, BufferPool buffers, int peerId) {
+        this.buffer = buffer;
+        this.buffers = buffers;
         this.peerId = peerId;
-        standbyBackupList = new ConcurrentHashMap<>();
     }
 
     /**
-     * Processes the read message and sends the response
+     * Processes the read message and gives the buffer back to the pool
      */
     @Override
     public void run() {
-        String[] head_body = new String(this.packet.getData()).stripLeading().split("\r\n\r\n", 2);
-        byte body[] = null;
-        byte tmp[] = this.packet.getData();
-        int i = 0;
-        for (; i < this.packet.getLength() - 3; i++) {
-            if (tmp[i] == 0xd && tmp[i + 1] == 0xa && tmp[i + 2] == 0xd && tmp[i + 3] == 0xa) {
-                break;
-            }
-        }
-        i += 4;
-        if (head_body.length > 1) {
-            if (this.packet.getLength() > i) {
-                body = Arrays.copyOfRange(this.packet.getData(), i, this.packet.getLength());
-            }
-        }
-        if (body == null) {
-            body = "".getBytes();
+        try {
+            process();
+        } finally {
+            this.buffers.release(this.buffer);
         }
+    }
 
-        List<Header> headers = HeaderConcrete.getHeaders(head_body[0] + " \r\n\r\n");
+    /**
+     * Processes the read message and sends the response
+     */
+    private void process() {
+        List<Header> headers = HeaderConcrete.getHeaders(this.buffer);
+        byte body[] = new byte[this.buffer.remaining()];
+        this.buffer.get(body);
 
         for (Header header : headers) {
             if (header.getSenderID() == this.peerId) {
@@ -77,93 +62,110 @@ public class Handler implements Runnable {
                 System.out.println("Incoming message "+ header.getMessageType()+" with Version " + header.getVersion() + " from peer "+header.getSenderID()+" not supported");
                 continue;
             }
+            // the chunk store and the quota only count the files already recovered, chunks to store wait for all of them
+            MessageType type = header.getMessageType();
+            if (type == MessageType.AWAKE || type == MessageType.PUTCHUNK || type == MessageType.PUTREF || type == MessageType.PUTSHARD) {
+                Peer.getServer().getRecovery().awaitCompletion();
+            } else {
+                Peer.getServer().getRecovery().ensureLoaded(header.getFileID());
+            }
             switch (header.getMessageType()) {
-                case PUTCHUNK -> {
+                case PUTCHUNK, PUTREF -> {
 
-                    byte m[] = MessageType.createStored(header.getVersion(), this.peerId, header.getFileID(), header.getChunkNo());
-                    DatagramPacket n_packet = new DatagramPacket(m, m.length, Peer.getServer().getMc().getAddress(), Peer.getServer().getMc().getPort());
+                    byte n_packet[] = MessageType.createStored(header.getVersion(), this.peerId, header.getFileID(), header.getChunkNo());
                     boolean hasFile = Peer.getServer().getStoredFiles().containsKey(header.getFileID());
                     if (hasFile && Peer.getServer().getStoredFiles().get(header.getFileID()).getChunks().containsKey(header.getChunkNo())) {
-                            Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().send(n_packet), new Random().nextInt(401), TimeUnit.MILLISECONDS);
+                            Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().sendControl(n_packet), new Random().nextInt(401), TimeUnit.MILLISECONDS);
                             break;
                     }
+                    // only the 1.1 peers that already store the contents answer a PUTREF
+                    if (header.getMessageType() == MessageType.PUTREF && (!Peer.getServer().getVersion().equals("1.1") || !Peer.getServer().getChunkStore().contains(header.getHash()))) {
+                        break;
+                    }
 
                     if (Peer.getServer().getVersion().equals("1.0")) {
                         putchunkAnswer(body, header, 401, n_packet);
                     } else if (Peer.getServer().getVersion().equals("1.1")) {           
                         byte[] finalBody = body;
                         Peer.getServer().getPool().schedule(() -> {
-                            Chunk c = Peer.getServer().getWaitingForPutchunk().get(header.getFileID()+header.getChunkNo());
+                            Chunk c = Peer.getServer().getWaitingForPutchunk().get(header.getFileID(), header.getChunkNo());
                             if(c!=null){
                                 c.setRepDegree(header.getReplicationDeg());
                                 if(c.shallSend()){
                                     putchunkAnswer(finalBody, header, 0, n_packet);
                                 }
-                                Peer.getServer().getWaitingForPutchunk().remove(header.getFileID()+header.getChunkNo());
+                                Peer.getServer().getWaitingForPutchunk().remove(header.getFileID(), header.getChunkNo());
                             }
                             else
                                 putchunkAnswer(finalBody, header, 0, n_packet);
                         }, new Random().nextInt(801), TimeUnit.MILLISECONDS);
                     }
                 }
+                case PUTSHARD -> {
+                    byte n_packet[] = MessageType.createStored(header.getVersion(), this.peerId, header.getFileID(), header.getChunkNo());
+                    RemoteFile stored = Peer.getServer().getStoredFiles().get(header.getFileID());
+                    if (stored != null && stored.getChunks().containsKey(header.getChunkNo())) {
+                        Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().sendControl(n_packet), new Random().nextInt(401), TimeUnit.MILLISECONDS);
+                        break;
+                    }
+                    byte[] finalBody = body;
+                    Peer.getServer().getPool().schedule(() -> putshardAnswer(finalBody, header, n_packet), new Random().nextInt(801), TimeUnit.MILLISECONDS);
+                }
                 case STORED -> {
                     if (Peer.getServer().getMyFiles().containsKey(header.getFileID())) {
                         Peer.getServer().getMyFiles().get(header.getFileID()).addStored(header.getChunkNo(), header.getSenderID());
                     } else if (Peer.getServer().getStoredFiles().containsKey(header.getFileID()) && Peer.getServer().getStoredFiles().get(header.getFileID()).chunks.containsKey(header.getChunkNo())) {
                         Peer.getServer().getStoredFiles().get(header.getFileID()).addStored(header.getChunkNo(), header.getSenderID());
                     } else if (Peer.getServer().getVersion().equals("1.1")) {
-                        if(Peer.getServer().getWaitingForPutchunk().containsKey(header.getFileID()+header.getChunkNo())){
-                            Peer.getServer().getWaitingForPutchunk().get(header.getFileID()+header.getChunkNo()).getPeerList().put(header.getSenderID(),true);
+                        Chunk c = Peer.getServer().getWaitingForPutchunk().get(header.getFileID(), header.getChunkNo());
+                        if (c == null) {
+                            c = new Chunk(header.getChunkNo(), header.getFileID(), -1);
+                            Chunk seen = Peer.getServer().getWaitingForPutchunk().putIfAbsent(header.getFileID(), header.getChunkNo(), c);
+                            if (seen != null) {
+                                c = seen;
+                            }
                         }
-                        else{
-                            Chunk c = new Chunk(header.getChunkNo(), header.getFileID(), -1);
-                            c.getPeerList().put(header.getSenderID(),true);
-                            Peer.getServer().getWaitingForPutchunk().put(header.getFileID()+header.getChunkNo(), c);
+                        c.getPeerList().put(header.getSenderID(), true);
+                        // a shard may have been stored meanwhile, see putshardAnswer
+                        RemoteFile stored = Peer.getServer().getStoredFiles().get(header.getFileID());
+                        if (stored != null && stored.getChunks().containsKey(header.getChunkNo())) {
+                            stored.addStored(header.getChunkNo(), header.getSenderID());
                         }
                     }
                 }
                 case GETCHUNK -> {
-                    Peer.getServer().getChunkQueue().remove(header.getFileID() + header.getChunkNo());
+                    Peer.getServer().getChunkQueue().remove(header.getFileID(), header.getChunkNo());
                     if (Peer.getServer().getStoredFiles().containsKey(header.getFileID())) {
                         Path name = Path.of(Peer.getServer().getServerName() + "/" + header.getFileID() + "/" + header.getChunkNo());
                         if (Files.exists(name)) {
-                            try {
-                                switch (Peer.getServer().getVersion()) {
-                                    case "1.0" -> {
-                                        byte[] file_content;
-                                        file_content = Files.readAllBytes(name);
-                                        byte[] message = MessageType.createChunk("1.0", (int) Peer.getServer().getPeerId(), header.getFileID(), header.getChunkNo(), file_content);
-                                        DatagramPacket packet = new DatagramPacket(message, message.length, Peer.getServer().getMdr().getAddress(), Peer.getServer().getMdr().getPort());
-                                        Peer.getServer().getPool().schedule(() -> {
-                                            if (!(Peer.getServer().getChunkQueue().containsKey(header.getFileID() + header.getChunkNo()))) {
-                                                Peer.getServer().getMdr().send(packet);
+                            switch (Peer.getServer().getVersion()) {
+                                case "1.0" -> {
+                                    // the timer only hands the disk read over to the threads of the execution mode
+                                    Peer.getServer().getPool().schedule(() -> Peer.getServer().getExecutionMode().execute(() -> {
+                                        if (!(Peer.getServer().getChunkQueue().containsKey(header.getFileID(), header.getChunkNo()))) {
+                                            try {
+                                                ChunkEncoder.send(Peer.getServer().getMdr(), "1.0", (int) Peer.getServer().getPeerId(), header.getFileID(), header.getChunkNo(), name);
+                                            } catch (IOException e) {
+                                                e.printStackTrace();
                                             }
-                                            Peer.getServer().getChunkQueue().remove(header.getFileID() + header.getChunkNo());
-                                        }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
-                                    }
-                                    case "1.1" -> {
-                                        Peer.getServer().getPool().schedule(() -> {
-                                            if (!(Peer.getServer().getChunkQueue().containsKey(header.getFileID() + header.getChunkNo()))) {
-                                                try {
-                                                    ServerSocket s = new ServerSocket(0);
-                                                    s.setSoTimeout(2000);
-                                                    byte[] message = MessageType.createChunk_1_1("1.1", (int) Peer.getServer().getPeerId(), header.getFileID(), header.getChunkNo(), InetAddress.getLocalHost().getHostAddress(), s.getLocalPort());
-                                                    DatagramPacket packet = new DatagramPacket(message, message.length, Peer.getServer().getMdr().getAddress(), Peer.getServer().getMdr().getPort());
-                                                    byte[] file_content;
-                                                    file_content = Files.readAllBytes(name);
-                                                    Socket n_s;
-                                                    Peer.getServer().getMdr().send(packet);
-                                                    n_s = s.accept();
-                                                    n_s.getOutputStream().write(file_content);
-                                                    n_s.close();
-                                                } catch (IOException e) {
-                                                }
+                                        }
+                                        Peer.getServer().getChunkQueue().remove(header.getFileID(), header.getChunkNo());
+                                    }), new Random().nextInt(401), TimeUnit.MILLISECONDS);
+                                }
+                                case "1.1" -> {
+                                    Peer.getServer().getPool().schedule(() -> {
+                                        if (!(Peer.getServer().getChunkQueue().containsKey(header.getFileID(), header.getChunkNo()))) {
+                                            try {
+                                                // the requester fetches the body from the chunk server of this peer
+                                                byte[] message = MessageType.createChunk_1_1("1.1", (int) Peer.getServer().getPeerId(), header.getFileID(), header.getChunkNo(), InetAddress.getLocalHost().getHostAddress(), Peer.getServer().getChunkServer().getPort());
+                                                DatagramPacket packet = new DatagramPacket(message, message.length, Peer.getServer().getMdr().getAddress(), Peer.getServer().getMdr().getPort());
+                                                Peer.getServer().getMdr().send(packet);
+                                            } catch (IOException e) {
                                             }
-                                            Peer.getServer().getChunkQueue().remove(header.getFileID() + header.getChunkNo());
-                                        }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
-                                    }
+                                        }
+                                        Peer.getServer().getChunkQueue().remove(header.getFileID(), header.getChunkNo());
+                                    }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
                                 }
-                            } catch (IOException ignored) {
                             }
                         }
                     }
@@ -177,8 +179,7 @@ public class Handler implements Runnable {
 
                         if (Peer.getServer().getVersion().equals("1.1")) {
                             byte message[] = MessageType.createPurged("1.1", this.peerId, f.getFileId());
-                            DatagramPacket packet = new DatagramPacket(message, message.length, Peer.getServer().getMc().getAddress(), Peer.getServer().getMc().getPort());
-                            this.sendMessage(0, Peer.getServer().getPool(), packet);
+                            this.sendMessage(0, message);
                         }
                     }
 
@@ -192,14 +193,7 @@ public class Handler implements Runnable {
                         if (Peer.getServer().getWaitingForPurge().containsKey(header.getFileID()) &&  Peer.getServer().getWaitingForPurge().get(header.getFileID()).getChunks().size() == 0) {
                             Peer.getServer().getWaitingForPurge().remove(header.getFileID());
 
-                            try {
-                                Files.walk(Path.of(Peer.getServer().getServerName() + "/.ldata/" + header.getFileID()))
-                                        .sorted(Comparator.reverseOrder())
-                                        .map(Path::toFile)
-                                        .forEach(java.io.File::delete);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+                            Peer.getServer().getJournal().localFileDeleted(header.getFileID());
                         }
                     }
 
@@ -209,8 +203,7 @@ public class Handler implements Runnable {
                     for (File file : Peer.getServer().getWaitingForPurge().values()) {
                         if (file.peerHasChunks(header.getSenderID())) {
                             byte message[] = MessageType.createDelete("1.1", this.peerId, file.getFileId());
-                            DatagramPacket packet = new DatagramPacket(message, message.length, Peer.getServer().getMc().getAddress(), Peer.getServer().getMc().getPort());
-                            this.sendMessage(0, Peer.getServer().getPool(), packet);
+                            this.sendMessage(0, message);
                         }
                     }
                 }
@@ -231,64 +224,48 @@ public class Handler implements Runnable {
                             if (chunk.getPeerList().containsKey(header.getSenderID())) {
                                 chunk.getPeerList().remove(header.getSenderID());
                                 chunk.updateLdata(Peer.getServer().getMyFiles().get(header.getFileID()).getName());
-                                return;
+                                continue;
                             }
                         } else if (chunk.getPeerList().containsKey(header.getSenderID())) {
                             chunk.getPeerList().remove(header.getSenderID());
                             chunk.updateRdata();
                         }
-                        if (chunk.getRealDegree() < chunk.getRepDegree()) {
+                        // a shard has a single copy, the peer that removed it was holding a duplicate
+                        if (chunk.getGroupSize() == 0 && chunk.getPeerCount() < chunk.getRepDegree()) {
                             Path name = Path.of(Peer.getServer().getServerName() + "/" + header.getFileID() + "/" + header.getChunkNo());
                             if (Files.exists(name)) {
-                                standbyBackupList.put(header.getFileID() + header.getChunkNo(), "yo");
+                                Peer.getServer().getStandbyBackups().put(header.getFileID(), header.getChunkNo(), true);
 
                                 Chunk finalChunk = chunk;
-                                Peer.getServer().getPool().schedule(() -> {
-                                    try {
-                                        if (standbyBackupList.containsKey(header.getFileID() + header.getChunkNo())) {
-                                            byte[] file_content;
-                                            file_content = Files.readAllBytes(name);
-
-                                            byte[] message1 = MessageType.createPutchunk("1.0", (int) Peer.getServer().getPeerId(), header.getFileID(), (int) header.getChunkNo(), finalChunk.getRepDegree(), file_content);
-                                            byte[] message2 = MessageType.createStored("1.0", (int) Peer.getServer().getPeerId(), header.getFileID(), (int) header.getChunkNo());
-                                            DatagramPacket packet1 = new DatagramPacket(message1, message1.length, Peer.getServer().getMdb().getAddress(), Peer.getServer().getMdb().getPort());
-                                            DatagramPacket packet2 = new DatagramPacket(message2, message2.length, Peer.getServer().getMc().getAddress(), Peer.getServer().getMc().getPort());
-                                            System.out.println("SENDING CHUNK NO " + finalChunk.getChunkNo());
-                                            removeAux(1, Peer.getServer().getPool(), packet1, packet2, header.getFileID(), header.getChunkNo(), finalChunk.getRepDegree());
-                                        }
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
+                                Peer.getServer().getRetransmissions().schedule(() -> {
+                                    // a PUTCHUNK seen meanwhile removes the chunk from the standby backups
+                                    if (Peer.getServer().getStandbyBackups().remove(header.getFileID(), header.getChunkNo()) != null) {
+                                        byte[] message2 = MessageType.createStored("1.0", (int) Peer.getServer().getPeerId(), header.getFileID(), (int) header.getChunkNo());
+                                        System.out.println("SENDING CHUNK NO " + finalChunk.getChunkNo());
+                                        removeAux(1, name, message2, header.getFileID(), header.getChunkNo(), finalChunk.getRepDegree());
                                     }
-                                }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
+                                }, new Random().nextInt(401));
                             }
                         }
                     }
                 }
                 case CHUNK -> {
-                    Peer.getServer().getChunkQueue().put(header.getFileID() + header.getChunkNo(), true);
+                    Peer.getServer().getChunkQueue().put(header.getFileID(), header.getChunkNo(), true);
                     if (Peer.getServer().getFileRestoring() != null && Peer.getServer().getFileRestoring().get(header.getFileID()) != null) {
 
                         switch (header.getVersion()) {
                             case "1.0" -> {
-                                processChunk(header, body.length, body);
+                                processChunk(header.getFileID(), header.getChunkNo(), body.length, body);
                             }
                             case "1.1" -> {
-                                if (Peer.getServer().getFileRestoring().containsKey(header.getFileID())) {
-                                    int read = 0;
-                                    byte alloc[];
+                                RestoreFile f = Peer.getServer().getFileRestoring().get(header.getFileID());
+                                boolean has = f == null || (f.getDecoder() != null ? f.getDecoder().has(header.getChunkNo()) : f.has(header.getChunkNo()));
+                                if (!has) {
                                     try {
-                                        byte[] tmp_buffer = new byte[64000];
-                                        Socket s = new Socket(header.getAddress(), header.getPort());
-                                        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
-                                        read = in.read(tmp_buffer);
-                                        if(read == -1)
-                                            break;
-                                        alloc = new byte[read];
-                                        System.arraycopy(tmp_buffer, 0, alloc, 0, read);
+                                        ChunkConnection.get(Peer.getServer().getChunkConnections(), header.getAddress(), header.getPort()).request(header.getFileID(), header.getChunkNo());
                                     } catch (IOException e) {
-                                        break;
+                                        System.out.println("Could not connect to peer " + header.getSenderID() + ": " + e.getMessage());
                                     }
-                                    processChunk(header, read, alloc);
                                 }
                             }
                         }
@@ -307,196 +284,240 @@ public class Handler implements Runnable {
      * @param waitTime time to wait before sending the answer
      * @param packet answer packer
      */
-    private void putchunkAnswer(byte[] body, Header header, int waitTime, DatagramPacket packet) {
+    private void putchunkAnswer(byte[] body, Header header, int waitTime, byte[] packet) {
         if (Peer.getServer().getMyFiles().containsKey(header.getFileID())) {
             return;
         }
-        boolean hasSpace = (Peer.getServer().getMaxSize().get() == -1 || Peer.getServer().getCurrentSize().get() + body.length <= Peer.getServer().getMaxSize().get());
+        // a retry or a duplicate datagram of a chunk being stored is left to the handler storing it
+        if (Peer.getServer().getStoringChunks().putIfAbsent(header.getFileID(), header.getChunkNo(), true) != null) {
+            return;
+        }
+        try {
+            RemoteFile stored = Peer.getServer().getStoredFiles().get(header.getFileID());
+            if (stored != null && stored.getChunks().containsKey(header.getChunkNo())) {
+                sendStored(packet, waitTime);
+            } else {
+                storeChunk(body, header, waitTime, packet);
+            }
+        } finally {
+            Peer.getServer().getStoringChunks().remove(header.getFileID(), header.getChunkNo());
+        }
+    }
+
+    /**
+     * Stores a chunk that is not stored yet, the caller holds its slot in the chunks being stored
+     * @param body of the chunk
+     * @param header header of the message read
+     * @param waitTime time to wait before sending the answer
+     * @param packet answer packer
+     */
+    private void storeChunk(byte[] body, Header header, int waitTime, byte[] packet) {
+        ChunkStore store = Peer.getServer().getChunkStore();
+        boolean reference = header.getMessageType() == MessageType.PUTREF;
+        String hash = reference ? header.getHash() : ChunkStore.hash(ByteBuffer.wrap(body));
+        int size = reference ? store.getSize(hash) : body.length;
+        if (size < 0) {
+            return;
+        }
+        // space for new contents is reserved now, the store commits or releases it
+        long reserved = store.contains(hash) ? 0 : size;
+        boolean hasSpace = reserve(reserved);
         boolean hasFile = Peer.getServer().getStoredFiles().containsKey(header.getFileID());
 
-        standbyBackupList.remove(header.getFileID() + header.getChunkNo());
+        Peer.getServer().getStandbyBackups().remove(header.getFileID(), header.getChunkNo());
         
         if (hasSpace) {
-                if (waitTime == 0) {
-                    Peer.getServer().getMc().send(packet);
-                } else {
-                    Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().send(packet), new Random().nextInt(waitTime), TimeUnit.MILLISECONDS);
-                }
-
                 if (!hasFile) {
                     try {
                         Files.createDirectories(Paths.get(Peer.getServer().getServerName() + "/" + header.getFileID()));
                     } catch (IOException e) {
                         System.exit(1);
                     }
-                    Peer.getServer().getStoredFiles().put(header.getFileID(), new RemoteFile(header.getFileID()));
+                }
+                Path path = Paths.get(Peer.getServer().getServerName() + "/" + header.getFileID() + "/" + header.getChunkNo());
+                // the contents of a PUTREF may have been removed since they were looked up
+                if (!store.store(hash, reference ? null : body, path, reserved)) {
+                    return;
+                }
+                sendStored(packet, waitTime);
+                if (!hasFile) {
+                    Peer.getServer().getStoredFiles().putIfAbsent(header.getFileID(), new RemoteFile(header.getFileID()));
                 }
 
-                Chunk c;
-                if (Peer.getServer().getWaitingForPutchunk().containsKey(header.getFileID()+header.getChunkNo())) {
-                    c = Peer.getServer().getWaitingForPutchunk().get(header.getFileID()+header.getChunkNo());
-                    c.setSize(body.length);
+                Chunk c = Peer.getServer().getWaitingForPutchunk().get(header.getFileID(), header.getChunkNo());
+                if (c != null) {
+                    c.setSize(size);
                 } else {
-                    c = new Chunk(header.getChunkNo(), header.getFileID(), header.getReplicationDeg(), body.length);
+                    c = new Chunk(header.getChunkNo(), header.getFileID(), header.getReplicationDeg(), size);
                 }
                 c.getPeerList().put(peerId, true);
-                c.updateRdata();
-
+                if (header.getMessageType() == MessageType.PUTSHARD) {
+                    c.setGroupSize(header.getGroupSize());
+                }
+                c.setHash(hash);
+                // the journal only writes chunks kept by their file
                 Peer.getServer().getStoredFiles().get(header.getFileID()).chunks.put(header.getChunkNo(), c);
-
-                Path path = Paths.get(Peer.getServer().getServerName() + "/" + header.getFileID() + "/" + header.getChunkNo());
-                AsynchronousFileChannel fileChannel = null;
-                try {
-                    fileChannel = AsynchronousFileChannel.open(
-                            path, WRITE, CREATE);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                c.updateRdata();
+                if (!reference) {
+                    Peer.getServer().getChunkCache().put(header.getFileID(), header.getChunkNo(), body);
                 }
+            }
+    }
 
-                ByteBuffer buffer = ByteBuffer.allocate(body.length);
+    /**
+     * Sends the STORED message of a chunk
+     * @param packet answer packet
+     * @param waitTime time to wait before sending it, 0 to send it now
+     */
+    private static void sendStored(byte[] packet, int waitTime) {
+        if (waitTime == 0) {
+            Peer.getServer().getMc().sendControl(packet);
+        } else {
+            Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().sendControl(packet), new Random().nextInt(waitTime), TimeUnit.MILLISECONDS);
+        }
+    }
 
-                buffer.put(body);
-                buffer.flip();
+    /**
+     * Reserves space to store more bytes, contents no longer referenced are removed first if needed
+     * @param size bytes to store
+     * @return true if they fit in the maximum size
+     */
+    private static boolean reserve(long size) {
+        StorageQuota quota = Peer.getServer().getQuota();
+        if (quota.reserve(size)) {
+            return true;
+        }
+        Peer.getServer().getChunkStore().purge();
+        return quota.reserve(size);
+    }
 
-                fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                @Override
-                public void completed(Integer result, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    /**
+     * Stores a shard of an erasure coded file unless another peer stored it first or this peer already
+     * stores a shard of the same group, so the shards of a group end up on distinct peers
+     * @param body of the shard
+     * @param header header of the message read
+     * @param packet answer packet
+     */
+    private void putshardAnswer(byte[] body, Header header, byte[] packet) {
+        Chunk seen = Peer.getServer().getWaitingForPutchunk().remove(header.getFileID(), header.getChunkNo());
+        if (seen != null && seen.getPeerCount() > 0) {
+            return;
+        }
+        int first = header.getChunkNo() - header.getChunkNo() % header.getGroupSize();
+        synchronized (shardLock) {
+            RemoteFile stored = Peer.getServer().getStoredFiles().get(header.getFileID());
+            for (int shardNo = first; stored != null && shardNo < first + header.getGroupSize(); shardNo++) {
+                if (stored.getChunks().containsKey(shardNo)) {
+                    return;
                 }
-
-                @Override
-                public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            }
+            putchunkAnswer(body, header, 0, packet);
+            // STORED messages that arrived while it was being stored were not seen by the chunk
+            Chunk late = Peer.getServer().getWaitingForPutchunk().remove(header.getFileID(), header.getChunkNo());
+            stored = Peer.getServer().getStoredFiles().get(header.getFileID());
+            if (late != null && stored != null) {
+                for (Integer peer : late.getPeerList().keySet()) {
+                    stored.addStored(header.getChunkNo(), peer);
                 }
-            });
-                buffer.clear();
-                Peer.getServer().getCurrentSize().addAndGet(body.length);
             }
+        }
     }
 
     /**
-     * Stores the incoming chunk and stores it on the disc if every chunk was received
-     * @param header message header
+     * Decodes the incoming chunk and writes it at its place in the file being restored
+     * @param fileId
+     * @param chunkNo
      * @param buffer_length
      * @param buffer (chunk data)
      */
-    synchronized private void processChunk(Header header, int buffer_length, byte[] buffer) {
-        if(Peer.getServer().getFileRestoring().containsKey(header.getFileID())){
-        if ((buffer_length < Peer.getServer().getChunkSize()) && (header.getChunkNo() < Peer.getServer().getFileRestoring().get(header.getFileID()).getNumberOfChunks() - 1)) {
+    static void processChunk(String fileId, int chunkNo, int buffer_length, byte[] buffer) {
+        RestoreFile f = Peer.getServer().getFileRestoring().get(fileId);
+        if (f == null) {
             return;
         }
-        if (!Peer.getServer().getFileRestoring().get(header.getFileID()).getChunks().containsKey(header.getChunkNo())) {
-            Peer.getServer().getFileRestoring().get(header.getFileID()).getChunks().put(header.getChunkNo(), buffer);
-            Integer totalC = Peer.getServer().getFileRestoring().get(header.getFileID()).getNumberOfChunks();
-            Integer numC = Peer.getServer().getFileRestoring().get(header.getFileID()).getChunks().size();
-            if(totalC != null && (numC%5 == 0 || numC.equals(totalC))){
-                System.out.println("Restore "+numC*100/totalC+"% done");
-            }
+        if (f.getDecoder() != null) {
+            f.getDecoder().received(chunkNo, buffer, buffer_length);
+            return;
         }
-
-
-        if (Peer.getServer().getFileRestoring().get(header.getFileID()).getNumberOfChunks() != null && Peer.getServer().getFileRestoring().get(header.getFileID()).getChunks().values().size() == Peer.getServer().getFileRestoring().get(header.getFileID()).getNumberOfChunks()) {
-            RestoreFile f = Peer.getServer().getFileRestoring().get(header.getFileID());
-            String folder = Peer.getServer().getServerName() + "/" + "restored";
-            if (!Files.exists(Path.of(folder))) {
-                try {
-                    Files.createDirectories(Path.of(folder));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            String[] a = Peer.getServer().getMyFiles().get(header.getFileID()).getName().split("/");
-            Path path = Paths.get(folder + "/" + a[a.length-1]);
-           
-
-            for (int iterator = 0; iterator < f.getChunks().size(); iterator++) {
-                ByteBuffer l_buffer = ByteBuffer.allocate(f.getChunks().get(iterator).length);
-
-                l_buffer.put(f.getChunks().get(iterator));
-                l_buffer.flip();
-                AsynchronousFileChannel fileChannel = null;
-                try {
-                    fileChannel = AsynchronousFileChannel.open(
-                            path, WRITE, CREATE);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                fileChannel.write(l_buffer, iterator * Peer.getServer().getChunkSize(), fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                    @Override
-                    public void completed(Integer result, AsynchronousFileChannel attachment) {
-                        try {
-                            attachment.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    @Override
-                    public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                        try {
-                            attachment.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-                l_buffer.clear();
+        if (f.has(chunkNo)) {
+            return;
+        }
+        byte[] raw = Peer.getServer().getCompression().decompress(f.getCodec(chunkNo), buffer, buffer_length, Peer.getServer().getChunkSize());
+        if (raw == null) {
+            return;
+        }
+        buffer = raw;
+        buffer_length = raw.length;
+        if (!f.fits(chunkNo, buffer_length)) {
+            return;
+        }
+        int numC = f.write(chunkNo, ByteBuffer.wrap(buffer, 0, buffer_length));
+        if (numC < 0) {
+            return;
+        }
+        Peer.getServer().getRetransmissions().cancel("GETCHUNK" + fileId + chunkNo);
+        if (f.getScheduler() != null) {
+            f.getScheduler().received(chunkNo, buffer_length);
+        }
+        int totalC = f.getNumberOfChunks();
+        if (numC % 5 == 0 || numC == totalC) {
+            System.out.println("Restore " + numC * 100 / totalC + "% done");
+        }
+        if (numC == totalC) {
+            Peer.getServer().getFileRestoring().remove(fileId, f);
+            if (f.getScheduler() != null) {
+                f.getScheduler().ended();
             }
-            Peer.getServer().getFileRestoring().remove(header.getFileID());
         }
     }
-    }
 
     /**
-     * Recursively checks it has received the answer to the remove message and schedule the resend message if it has not
+     * Recursively checks it has received the answer to the remove message and schedule the resend message if it has not,
+     * the chunk is read again on every try and the pending try is cancelled once enough STORED messages arrive
      * @param i
-     * @param pool (thread pool)
-     * @param packet1
-     * @param packet2
+     * @param name path of the stored chunk
+     * @param stored STORED message sent with every try
      * @param fileId
      * @param chunkNo
      * @param repDegree
      */
-    private void removeAux(int i, ScheduledExecutorService pool, DatagramPacket packet1, DatagramPacket
-            packet2, String fileId, int chunkNo, int repDegree) {
-        Peer.getServer().getMdb().send(packet1);
+    private void removeAux(int i, Path name, byte[] stored, String fileId, int chunkNo, int repDegree) {
+        try {
+            byte[] file_content = Files.readAllBytes(name);
+            PutchunkEncoder.send(Peer.getServer().getMdb(), "1.0", (int) Peer.getServer().getPeerId(), fileId, chunkNo, repDegree, ByteBuffer.wrap(file_content));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-        Peer.getServer().getPool().schedule(() -> Peer.getServer().getMc().send(packet2), new Random().nextInt(401), TimeUnit.MILLISECONDS);
+        Peer.getServer().getRetransmissions().schedule(() -> Peer.getServer().getMc().sendControl(stored), new Random().nextInt(401));
 
         System.out.println("TRYING again " + chunkNo);
-        pool.schedule(() -> {
-            if (Peer.getServer().getMyFiles().get(fileId).getReplicationDegree(chunkNo) < repDegree) {
+        Peer.getServer().getRetransmissions().schedule("REMOVED" + fileId + chunkNo, () -> {
+            RemoteFile file = Peer.getServer().getStoredFiles().get(fileId);
+            Chunk chunk = file == null ? null : file.getChunks().get(chunkNo);
+            if (chunk != null && chunk.getPeerCount() < repDegree) {
                 if (i < 16) {
-                    //System.out.println("Against: " + i + " " + this.agains.getAndIncrement() + " " + chunkNo);
-                    this.removeAux(i * 2, pool, packet1, packet2, fileId, chunkNo, repDegree);
+                    this.removeAux(i * 2, name, stored, fileId, chunkNo, repDegree);
                 } else {
                     System.out.println("Gave up on removed backup subprotocol");
                 }
             }
-        }, i * 1000L + new Random().nextInt(401), TimeUnit.MILLISECONDS);
+        }, i * 1000L + new Random().nextInt(401));
     }
 
     /**
      * Used to send a packet Recursively 5 times
      * @param i
-     * @param pool
-     * @param packet
+     * @param message
      */
-    private void sendMessage(int i, ScheduledExecutorService pool, DatagramPacket packet) {
-        Peer.getServer().getMc().send(packet);
-        pool.schedule(() -> {
+    private void sendMessage(int i, byte[] message) {
+        Peer.getServer().getMc().sendControl(message);
+        Peer.getServer().getRetransmissions().schedule(() -> {
             if (i < 5) {
-                this.sendMessage(i + 1, pool, packet);
+                this.sendMessage(i + 1, message);
             }
-        }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
+        }, new Random().nextInt(401));
     }
 
 }
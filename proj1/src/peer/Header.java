@@ -29,6 +29,14 @@ public interface Header {
 
     void setPort(Integer port);
 
+    Integer getGroupSize();
+
+    void setGroupSize(Integer groupSize);
+
+    String getHash();
+
+    void setHash(String hash);
+
     String getAddress();
 
     void setAddress(String address);
@@ -1,5 +1,6 @@
 package peer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -7,8 +8,8 @@ import java.util.List;
  * Implements Header interface, used to Process the header messages
  */
 public class HeaderConcrete implements Header {
-    private String version, fileID, address;
-    private Integer senderID, chunkNo, replicationDeg, port;
+    private String version, fileID, address, hash;
+    private Integer senderID, chunkNo, replicationDeg, port, groupSize;
 
     private MessageType messageType;
 
@@ -16,60 +17,38 @@ public class HeaderConcrete implements Header {
     }
 
     /**
-     * Returns a subarray of the input array
-     * @param argsList
-     * @param startingIndex
-     * @return
+     * parses the headers straight from the message bytes, a message can carry several headers separated by CRLF
+     * and ends them with CRLFCRLF
+     * @param message received message, on return its position is the start of the body
+     * @return list of headers on the received message, empty if any of them is malformed
      */
-    private static String[] getSubArray(String[] argsList, int startingIndex) {
-        String[] cp = new String[argsList.length - startingIndex - 1];
-        System.arraycopy(argsList, startingIndex + 1, cp, 0, argsList.length - startingIndex - 1);
-        return cp;
-    }
-
-    /**
-     * parses the headers
-     * @param headerMessage received message
-     * @return loist of headers on the received message
-     */
-    static List<Header> getHeaders(String headerMessage) {
-        String[] argsList = headerMessage.stripLeading().replaceAll(" +", " ").split(" ");
+    static List<Header> getHeaders(ByteBuffer message) {
+        HeaderParser parser = new HeaderParser(message);
         List<Header> outList = new ArrayList<>();
-        Header localHeader;
-        int i = 0;
-        while (true) {
-            try {
+        try {
+            parser.skipWhiteSpace();
+            for (int i = 0; i <= 200; i++) {
+                Header localHeader = new HeaderConcrete();
+                localHeader.setVersion(parser.version());
+                localHeader.setMessageType(parser.messageType());
+                localHeader.getMessageType().process(localHeader, parser);
+                outList.add(localHeader);
 
-                if (argsList.length == 0) {
+                parser.skipSpaces();
+                if (!parser.lineEnd()) {
                     throw new ParseError();
                 }
-                localHeader = new HeaderConcrete();
-                if (argsList.length < 2) {
-                    throw new ParseError();
-                }
-                localHeader.setVersion(argsList[0]);
-                localHeader.setMessageType(MessageType.parseMessageType(argsList[1]));
-                int lIndex = localHeader.getMessageType().process(localHeader, argsList);
-
                 //se chegou ao fim
-                if (argsList[lIndex].matches(" *(\r\n){1,2}[\\s\\S]*")) {
-                    if (argsList[lIndex].matches(" *\r\n\r\n[\\s\\S]*")) {
-                        outList.add(localHeader);
-                        return outList;
-                    }
-                } else {
-                    throw new ParseError();
+                if (parser.lineEnd()) {
+                    break;
                 }
-                //limpa os elementos já processados para ler o proximo header
-                argsList = getSubArray(argsList, lIndex);
-                outList.add(localHeader);
-            } catch (Exception | ParseError e) {
-                return new ArrayList<>();
+                parser.skipSpaces();
             }
-            i++;
-            if(i>200)
-                return outList;
+        } catch (ParseError e) {
+            return new ArrayList<>();
         }
+        message.position(parser.getPosition());
+        return outList;
     }
 
     @Override
@@ -142,6 +121,26 @@ public class HeaderConcrete implements Header {
         this.port = port;
     }
 
+    @Override
+    public Integer getGroupSize() {
+        return groupSize;
+    }
+
+    @Override
+    public void setGroupSize(Integer groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    @Override
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
     @Override
     public String getAddress() {
         return address;
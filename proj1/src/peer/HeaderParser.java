@@ -0,0 +1,206 @@
+package peer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the header fields straight from the bytes of a received message, without decoding it to a String
+ */
+public class HeaderParser {
+    private static final byte[][] TYPE_NAMES = new byte[MessageType.values().length][];
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            TYPE_NAMES[type.ordinal()] = type.name().getBytes();
+        }
+    }
+
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    HeaderParser(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+    }
+
+    /**
+     *
+     * @return index of the first byte not read yet
+     */
+    int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Skips any leading white space, including line breaks
+     */
+    void skipWhiteSpace() {
+        while (this.position < this.limit) {
+            byte b = this.buffer.get(this.position);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+            this.position++;
+        }
+    }
+
+    /**
+     * Skips the spaces between fields
+     */
+    void skipSpaces() {
+        while (this.position < this.limit && this.buffer.get(this.position) == ' ') {
+            this.position++;
+        }
+    }
+
+    /**
+     * Reads a CRLF, the end of the message also counts as one
+     * @return true if it read a line end
+     */
+    boolean lineEnd() {
+        if (this.position >= this.limit) {
+            return true;
+        }
+        if (this.position + 1 < this.limit && this.buffer.get(this.position) == '\r' && this.buffer.get(this.position + 1) == '\n') {
+            this.position += 2;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skips the spaces before a field and finds where it ends
+     * @return index of the byte after the field
+     * @throws ParseError if there is no field
+     */
+    private int fieldEnd() throws ParseError {
+        skipSpaces();
+        int end = this.position;
+        while (end < this.limit) {
+            byte b = this.buffer.get(end);
+            if (b == ' ' || b == '\r' || b == '\n') {
+                break;
+            }
+            end++;
+        }
+        if (end == this.position) {
+            throw new ParseError();
+        }
+        return end;
+    }
+
+    /**
+     * Checks if the next field is equal to the given bytes, without reading it
+     * @param end index of the byte after the field
+     * @param bytes
+     * @return
+     */
+    private boolean fieldEquals(int end, byte[] bytes) {
+        if (end - this.position != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (this.buffer.get(this.position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the protocol version, known versions are not allocated again
+     * @throws ParseError
+     */
+    String version() throws ParseError {
+        int end = fieldEnd();
+        String version;
+        if (end - this.position == 3 && this.buffer.get(this.position) == '1' && this.buffer.get(this.position + 1) == '.' && this.buffer.get(this.position + 2) == '0') {
+            version = "1.0";
+        } else if (end - this.position == 3 && this.buffer.get(this.position) == '1' && this.buffer.get(this.position + 1) == '.' && this.buffer.get(this.position + 2) == '1') {
+            version = "1.1";
+        } else {
+            version = token(end);
+        }
+        this.position = end;
+        return version;
+    }
+
+    /**
+     *
+     * @return the message type
+     * @throws ParseError if it is not a known type
+     */
+    MessageType messageType() throws ParseError {
+        int end = fieldEnd();
+        for (MessageType type : MessageType.values()) {
+            if (fieldEquals(end, TYPE_NAMES[type.ordinal()])) {
+                this.position = end;
+                return type;
+            }
+        }
+        throw new ParseError();
+    }
+
+    /**
+     * Reads a non negative decimal number
+     * @param maxDigits
+     * @return
+     * @throws ParseError if the field has other characters or too many digits
+     */
+    int number(int maxDigits) throws ParseError {
+        int end = fieldEnd();
+        if (end - this.position > maxDigits) {
+            throw new ParseError();
+        }
+        int n = 0;
+        for (int i = this.position; i < end; i++) {
+            byte b = this.buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new ParseError();
+            }
+            n = n * 10 + (b - '0');
+        }
+        this.position = end;
+        return n;
+    }
+
+    /**
+     *
+     * @return the file id in lower case
+     * @throws ParseError if it does not have 64 characters
+     */
+    String fileId() throws ParseError {
+        int end = fieldEnd();
+        if (end - this.position != 64) {
+            throw new ParseError();
+        }
+        char id[] = new char[64];
+        for (int i = 0; i < 64; i++) {
+            id[i] = Character.toLowerCase((char) (this.buffer.get(this.position + i) & 0xff));
+        }
+        this.position = end;
+        return new String(id);
+    }
+
+    /**
+     *
+     * @return the next field as a String
+     * @throws ParseError
+     */
+    String token() throws ParseError {
+        int end = fieldEnd();
+        String token = token(end);
+        this.position = end;
+        return token;
+    }
+
+    private String token(int end) {
+        char token[] = new char[end - this.position];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = (char) (this.buffer.get(this.position + i) & 0xff);
+        }
+        return new String(token);
+    }
+}
@@ -0,0 +1,207 @@
+package peer;
+
+/**
+ * Map from long keys to values for the maps of the peer keyed by chunk, see {@link ChunkMap}.
+ * Keys are kept in long arrays with open addressing and linear probing, so no key or entry object is
+ * allocated per message. The map is split in segments that lock independently, like the concurrent maps it
+ * replaces. The key 0 marks an empty slot and can not be stored
+ */
+public class LongMap<V> {
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Part of the map with its own lock
+     */
+    private static class Segment {
+        private long[] keys = new long[INITIAL];
+        private Object[] values = new Object[INITIAL];
+        private int size = 0;
+
+        private int find(long key, long hash) {
+            int mask = this.keys.length - 1;
+            int i = (int) hash & mask;
+            while (this.keys[i] != 0) {
+                if (this.keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        synchronized Object get(long key, long hash) {
+            int i = find(key, hash);
+            return i < 0 ? null : this.values[i];
+        }
+
+        synchronized Object put(long key, long hash, Object value, boolean onlyIfAbsent) {
+            int mask = this.keys.length - 1;
+            int i = (int) hash & mask;
+            while (this.keys[i] != 0) {
+                if (this.keys[i] == key) {
+                    Object old = this.values[i];
+                    if (!onlyIfAbsent) {
+                        this.values[i] = value;
+                    }
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            this.keys[i] = key;
+            this.values[i] = value;
+            // kept at most 3/4 full so the probes stay short
+            if (++this.size * 4 > this.keys.length * 3) {
+                resize(this.keys.length * 2);
+            }
+            return null;
+        }
+
+        synchronized Object remove(long key, long hash) {
+            int i = find(key, hash);
+            if (i < 0) {
+                return null;
+            }
+            Object old = this.values[i];
+            // the entries after it in the run move back, so the lookups never stop at a hole left by the removal
+            int mask = this.keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (this.keys[j] == 0) {
+                    break;
+                }
+                int home = (int) mix(this.keys[j]) & mask;
+                boolean between = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!between) {
+                    this.keys[i] = this.keys[j];
+                    this.values[i] = this.values[j];
+                    i = j;
+                }
+            }
+            this.keys[i] = 0;
+            this.values[i] = null;
+            this.size--;
+            // a burst of entries, like the STORED messages of a large backup, does not keep its memory
+            if (this.keys.length > INITIAL && this.size * 8 < this.keys.length) {
+                resize(this.keys.length / 2);
+            }
+            return old;
+        }
+
+        private void resize(int length) {
+            long[] keys = this.keys;
+            Object[] values = this.values;
+            this.keys = new long[length];
+            this.values = new Object[length];
+            int mask = length - 1;
+            for (int k = 0; k < keys.length; k++) {
+                if (keys[k] != 0) {
+                    int i = (int) mix(keys[k]) & mask;
+                    while (this.keys[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    this.keys[i] = keys[k];
+                    this.values[i] = values[k];
+                }
+            }
+        }
+
+        synchronized int size() {
+            return this.size;
+        }
+    }
+
+    public LongMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Spreads the bits of the key, the keys of a file only differ in their low bits
+     * @param key
+     * @return hash of the key
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Segment segment(long hash) {
+        return this.segments[(int) (hash >>> 60)];
+    }
+
+    /**
+     *
+     * @param key
+     * @return the value or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long hash = mix(key);
+        return (V) segment(hash).get(key, hash);
+    }
+
+    /**
+     *
+     * @param key
+     * @return true if the key has a value
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     *
+     * @param key not 0
+     * @param value not null
+     * @return the previous value or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        long hash = mix(key);
+        return (V) segment(hash).put(key, hash, value, false);
+    }
+
+    /**
+     *
+     * @param key not 0
+     * @param value not null
+     * @return the current value, null if there was none and the value was added
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        long hash = mix(key);
+        return (V) segment(hash).put(key, hash, value, true);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the removed value or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        long hash = mix(key);
+        return (V) segment(hash).remove(key, hash);
+    }
+
+    /**
+     *
+     * @return number of keys
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : this.segments) {
+            size += s.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,219 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the handlers of the messages received on every channel. Messages are split in priority classes,
+ * control messages are always taken before data messages and each class has a limit of handlers running
+ * at the same time. There is a worker for each place in every class, so however many PUTCHUNK and CHUNK
+ * messages are waiting, a control message only waits for the control messages before it. When every task
+ * gets its own thread no worker is kept, a thread is started for each handler once its class is below its limit
+ */
+public class MessageScheduler {
+    /**
+     * Priority classes, in the order they are taken
+     */
+    public enum Priority {
+        CONTROL,
+        DATA
+    }
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition ready = this.lock.newCondition();
+    private List<ArrayDeque<Task>> queues;
+    private int[] running;
+    private int[] limits;
+    private ThreadFactory threads;
+    private boolean perTask;
+    private AtomicLong[] handled;
+    private AtomicLong[] maxWait;
+
+    /**
+     * A handler waiting to run and the time it was queued
+     */
+    private static class Task {
+        private Runnable runnable;
+        private int priority;
+        private long queued = System.nanoTime();
+
+        Task(Runnable runnable, int priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Starts the workers, if there is a thread per task none is started
+     * @param controlLimit maximum number of control messages handled at the same time
+     * @param dataLimit maximum number of data messages handled at the same time
+     * @param threads factory of the worker threads
+     * @param perTask true to start a thread for each handler instead of keeping workers
+     */
+    public MessageScheduler(int controlLimit, int dataLimit, ThreadFactory threads, boolean perTask) {
+        int classes = Priority.values().length;
+        this.queues = new ArrayList<>(classes);
+        this.running = new int[classes];
+        this.limits = new int[]{controlLimit, dataLimit};
+        this.threads = threads;
+        this.perTask = perTask;
+        this.handled = new AtomicLong[classes];
+        this.maxWait = new AtomicLong[classes];
+        for (int i = 0; i < classes; i++) {
+            this.queues.add(new ArrayDeque<>());
+            this.handled[i] = new AtomicLong(0);
+            this.maxWait[i] = new AtomicLong(0);
+        }
+        if (perTask) {
+            return;
+        }
+        for (int i = 0; i < controlLimit + dataLimit; i++) {
+            Thread worker = threads.newThread(this::work);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the handler of a received message in the class of its first message
+     * @param message received datagram, its position is not changed
+     * @param handler
+     */
+    public void submit(ByteBuffer message, Runnable handler) {
+        submit(classify(message), handler);
+    }
+
+    /**
+     * Queues a handler in the given class
+     * @param priority
+     * @param handler
+     */
+    public void submit(Priority priority, Runnable handler) {
+        this.lock.lock();
+        try {
+            this.queues.get(priority.ordinal()).add(new Task(handler, priority.ordinal()));
+            if (this.perTask) {
+                dispatch();
+            } else {
+                this.ready.signal();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param message
+     * @return DATA for PUTCHUNK, PUTSHARD, PUTREF and CHUNK messages, CONTROL for the others and for messages that can not be parsed
+     */
+    static Priority classify(ByteBuffer message) {
+        HeaderParser parser = new HeaderParser(message);
+        try {
+            parser.skipWhiteSpace();
+            parser.version();
+            MessageType type = parser.messageType();
+            return type == MessageType.PUTCHUNK || type == MessageType.PUTSHARD || type == MessageType.PUTREF || type == MessageType.CHUNK ? Priority.DATA : Priority.CONTROL;
+        } catch (ParseError e) {
+            return Priority.CONTROL;
+        }
+    }
+
+    /**
+     * Takes the first queued handler of the highest class that is below its limit, the lock must be held
+     * @return the task or null if none can run now
+     */
+    private Task next() {
+        for (int i = 0; i < this.queues.size(); i++) {
+            if (this.running[i] < this.limits[i] && !this.queues.get(i).isEmpty()) {
+                this.running[i]++;
+                return this.queues.get(i).poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts a thread for every handler that can run now, the lock must be held
+     */
+    private void dispatch() {
+        for (Task task = next(); task != null; task = next()) {
+            Task started = task;
+            this.threads.newThread(() -> run(started)).start();
+        }
+    }
+
+    /**
+     * Loop of a worker, runs the first queued handler of the highest class that is below its limit
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            this.lock.lock();
+            try {
+                while ((task = next()) == null) {
+                    this.ready.awaitUninterruptibly();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            run(task);
+        }
+    }
+
+    /**
+     * Runs a handler and gives its place in the class back
+     * @param task
+     */
+    private void run(Task task) {
+        long wait = (System.nanoTime() - task.queued) / 1000000;
+        this.maxWait[task.priority].accumulateAndGet(wait, Math::max);
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            this.handled[task.priority].incrementAndGet();
+            this.lock.lock();
+            try {
+                this.running[task.priority]--;
+                if (this.perTask) {
+                    dispatch();
+                } else {
+                    // another class may be waiting for this worker
+                    this.ready.signal();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return number of queued and handled messages and the longest wait of each class
+     */
+    public String getStats() {
+        StringBuilder out = new StringBuilder();
+        this.lock.lock();
+        try {
+            for (Priority priority : Priority.values()) {
+                int i = priority.ordinal();
+                if (i > 0) {
+                    out.append(", ");
+                }
+                out.append(priority).append(" ").append(this.queues.get(i).size()).append(" queued/")
+                        .append(this.handled[i].get()).append(" handled, max wait ").append(this.maxWait[i].get()).append(" ms");
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return out.toString();
+    }
+}
@@ -9,114 +9,90 @@ import java.io.IOException;
 public enum MessageType {
     PUTCHUNK {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            this.processChunkNo(h, argsList[4]);
-            this.processReplicationDeg(h, argsList[5]);
-            return 6;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
+            this.processReplicationDeg(h, parser);
         }
     },
     STORED {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            this.processChunkNo(h, argsList[4]);
-            return 5;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
         }
     },
     GETCHUNK {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            this.processChunkNo(h, argsList[4]);
-            return 5;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
         }
     },
     DELETE {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            return 4;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
         }
     },
     REMOVED {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            this.processChunkNo(h, argsList[4]);
-            return 5;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
         }
     },
     CHUNK {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            this.processChunkNo(h, argsList[4]);
-            if (argsList[0].equals("1.1")) {
-                this.processAddress(h, argsList[5]);
-                this.processPort(h, argsList[6]);
-                return 7;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
+            if (h.getVersion().equals("1.1")) {
+                this.processAddress(h, parser);
+                this.processPort(h, parser);
             }
-            return 5;
         }
     },
     PURGED {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            this.processFileID(h, argsList[3]);
-            return 4;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
         }
     },
     AWAKE {
         @Override
-        public int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError {
-            this.processSenderID(h, argsList[2]);
-            return 3;
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
         }
-    };
-
-    /**
-     *
-     * @param messageType
-     * @return enum element depending on the messageType
-     * @throws ParseError
-     */
-    static MessageType parseMessageType(String messageType) throws ParseError {
-        switch (messageType) {
-            case "PUTCHUNK" -> {
-                return MessageType.PUTCHUNK;
-            }
-            case "STORED" -> {
-                return MessageType.STORED;
-            }
-            case "GETCHUNK" -> {
-                return MessageType.GETCHUNK;
-            }
-            case "CHUNK" -> {
-                return MessageType.CHUNK;
-            }
-            case "REMOVED" -> {
-                return MessageType.REMOVED;
-            }
-            case "DELETE" -> {
-                return MessageType.DELETE;
-            }
-            case "AWAKE" -> {
-                return MessageType.AWAKE;
-            }
-            case "PURGED" -> {
-                return MessageType.PURGED;
-            }
-            default -> throw new ParseError();
+    },
+    PUTSHARD {
+        @Override
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
+            this.processGroupSize(h, parser);
+            // every shard of an erasure coded file is stored by a single peer
+            h.setReplicationDeg(1);
         }
-    }
+    },
+    PUTREF {
+        @Override
+        public void process(Header h, HeaderParser parser) throws ParseError {
+            this.processSenderID(h, parser);
+            this.processFileID(h, parser);
+            this.processChunkNo(h, parser);
+            this.processReplicationDeg(h, parser);
+            this.processHash(h, parser);
+        }
+    };
 
     /**
      *
@@ -140,6 +116,21 @@ public enum MessageType {
         return outputStream.toByteArray();
     }
 
+    /**
+     * A PUTREF asks the peers that already store the contents of a chunk to store it again under a new
+     * fileId and chunkNo, without sending the body. Like PUTSHARD it is an extension of the 1.1 protocol
+     * @param version
+     * @param senderId
+     * @param fileId
+     * @param chunkNo
+     * @param replicationDegree
+     * @param hash SHA-256 of the contents of the chunk
+     * @return string with a putref message
+     */
+    public static byte[] createPutref(String version, int senderId, String fileId, int chunkNo, int replicationDegree, String hash) {
+        return (version + " PUTREF " + senderId + " " + fileId + " " + chunkNo + " " + replicationDegree + " " + hash + " \r\n\r\n").getBytes();
+    }
+
     /**
      *
      * @param version
@@ -253,62 +244,49 @@ public enum MessageType {
         return (version + " REMOVED " + senderId + " " + fileId + " " + chunkNo + " \r\n\r\n").getBytes();
     }
 
-    public abstract int process(Header h, String[] argsList) throws ParseError, ParseError, ParseError, ParseError;
+    /**
+     * Reads the fields that follow the message type
+     * @param h header being filled
+     * @param parser positioned after the message type
+     * @throws ParseError
+     */
+    public abstract void process(Header h, HeaderParser parser) throws ParseError;
 
-    void processSenderID(Header h, String senderID) throws ParseError {
-        try {
-            h.setSenderID(Integer.parseInt(senderID));
-            if (h.getSenderID() < 0) {
-                throw new ParseError();
-            }
-        } catch (Exception e) {
-            throw new ParseError();
-        }
+    void processSenderID(Header h, HeaderParser parser) throws ParseError {
+        h.setSenderID(parser.number(9));
     }
 
-    void processFileID(Header h, String fileID) throws ParseError {
-        if (fileID.length() != 64) {
-            throw new ParseError();
-        }
-        h.setFileID(fileID.toLowerCase());
+    void processFileID(Header h, HeaderParser parser) throws ParseError {
+        h.setFileID(parser.fileId());
     }
 
-    void processChunkNo(Header h, String chunkNo) throws ParseError {
-        try {
-            if (chunkNo.length() > 6) {
-                throw new ParseError();
-            }
-            h.setChunkNo(Integer.parseInt(chunkNo));
+    void processChunkNo(Header h, HeaderParser parser) throws ParseError {
+        h.setChunkNo(parser.number(6));
+    }
 
-            if (h.getChunkNo() < 0) {
-                throw new ParseError();
-            }
-        } catch (Exception e) {
-            throw new ParseError();
-        }
+    void processReplicationDeg(Header h, HeaderParser parser) throws ParseError {
+        h.setReplicationDeg(parser.number(9));
     }
 
-    void processReplicationDeg(Header h, String replicationDeg) throws ParseError {
-        try {
-            h.setReplicationDeg(Integer.parseInt(replicationDeg.trim()));
-            if (h.getReplicationDeg() < 0) {
-                throw new ParseError();
-            }
-        } catch (Exception e) {
+    void processGroupSize(Header h, HeaderParser parser) throws ParseError {
+        int groupSize = parser.number(3);
+        if (groupSize == 0) {
             throw new ParseError();
         }
+        h.setGroupSize(groupSize);
     }
 
-    void processAddress(Header h, String address) throws ParseError {
-        h.setAddress(address);
+    void processHash(Header h, HeaderParser parser) throws ParseError {
+        // a hash has the same form as a fileId
+        h.setHash(parser.fileId());
     }
 
-    void processPort(Header h, String port) throws ParseError {
-        try {
-            h.setPort(Integer.valueOf(port));
-        } catch (Exception e) {
-            throw new ParseError();
-        }
+    void processAddress(Header h, HeaderParser parser) throws ParseError {
+        h.setAddress(parser.token());
+    }
+
+    void processPort(Header h, HeaderParser parser) throws ParseError {
+        h.setPort(parser.number(5));
     }
 
 }
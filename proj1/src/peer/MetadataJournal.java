@@ -0,0 +1,656 @@
+package peer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append only binary journal with the chunk metadata of the peer (local files and stored copies).
+ * Every update is a buffered sequential append, repeated updates to a chunk are merged into one record
+ * written by the next flush. The journal is compacted into a snapshot of the current state once it grows
+ * past a threshold. Recovery loads the snapshot and replays the journal, see {@link MetadataRecovery}.
+ * Each snapshot starts with the epoch of the journal written after it, so an old journal is never
+ * replayed over a newer snapshot
+ */
+public class MetadataJournal {
+    static final byte LOCAL_CHUNK = 1;
+    static final byte LOCAL_CHUNK_DELETED = 2;
+    static final byte LOCAL_FILE_DELETED = 3;
+    static final byte PURGING = 4;
+    static final byte REMOTE_CHUNK = 5;
+    static final byte REMOTE_CHUNK_DELETED = 6;
+    static final byte REMOTE_FILE_DELETED = 7;
+    static final byte ERASURE = 8;
+    static final byte MANIFEST = 9;
+    private static final int MANIFEST_CHUNKS = 8192;
+
+    private static final long COMPACT_THRESHOLD = 16 * 1024 * 1024;
+    private static final int BATCH_SIZE = 1024;
+
+    private Path folder;
+    private Path snapshotPath;
+    private long epoch = 0;
+    private OutputStream out;
+    private long journalSize = 0;
+    private boolean compacting = false;
+    private ConcurrentHashMap<String, Dirty> dirty = new ConcurrentHashMap<>();
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private AtomicLong updates = new AtomicLong(0);
+    private AtomicLong records = new AtomicLong(0);
+
+    /**
+     * Chunk with changes not written yet, the name of the file is null for stored copies
+     */
+    private static class Dirty {
+        private String name;
+        private Chunk chunk;
+
+        Dirty(String name, Chunk chunk) {
+            this.name = name;
+            this.chunk = chunk;
+        }
+    }
+
+    public MetadataJournal(String serverName) {
+        this.folder = Path.of(serverName + "/.metadata");
+        this.snapshotPath = this.folder.resolve("snapshot");
+        try {
+            Files.createDirectories(this.folder);
+            if (Files.exists(this.snapshotPath)) {
+                try (DataInputStream in = new DataInputStream(new FileInputStream(this.snapshotPath.toFile()))) {
+                    this.epoch = in.readLong();
+                }
+            }
+            if (Files.exists(journalPath(this.epoch))) {
+                this.journalSize = Files.size(journalPath(this.epoch));
+            }
+            this.out = new BufferedOutputStream(new FileOutputStream(journalPath(this.epoch).toFile(), true), 64 * 1024);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *
+     * @param epoch
+     * @return path of the journal written after the snapshot of the given epoch
+     */
+    private Path journalPath(long epoch) {
+        return this.folder.resolve("journal-" + epoch);
+    }
+
+    /**
+     *
+     * @return true if there is no journal nor snapshot yet
+     */
+    boolean isEmpty() {
+        return this.journalSize == 0 && !Files.exists(this.snapshotPath);
+    }
+
+    /**
+     * Records the metadata of a chunk of a local file
+     * @param name
+     * @param c
+     */
+    void localChunk(String name, Chunk c) {
+        update("L" + c.getFileId() + c.getChunkNo(), new Dirty(name, c));
+    }
+
+    /**
+     * Records that a chunk of a local file is no longer stored by any peer
+     * @param fileId
+     * @param chunkNo
+     */
+    synchronized void localChunkDeleted(String fileId, int chunkNo) {
+        this.dirty.remove("L" + fileId + chunkNo);
+        append(encode(LOCAL_CHUNK_DELETED, fileId, chunkNo));
+    }
+
+    /**
+     * Records that every metadata of a local file was removed
+     * @param fileId
+     */
+    synchronized void localFileDeleted(String fileId) {
+        discard("L" + fileId);
+        append(encode(LOCAL_FILE_DELETED, fileId, -1));
+    }
+
+    /**
+     * Records if a local file is waiting for PURGED messages
+     * @param fileId
+     * @param purging
+     */
+    void purging(String fileId, boolean purging) {
+        append(encode(PURGING, fileId, purging ? 1 : 0));
+    }
+
+    /**
+     * Records the erasure coding parameters of a local file
+     * @param f
+     */
+    void erasure(File f) {
+        append(encodeErasure(f));
+    }
+
+    /**
+     * Records the size of the chunks of a local file that is not cut at multiples of the chunk size
+     * @param f
+     */
+    void manifest(File f) {
+        for (byte[] record : encodeManifest(f)) {
+            append(record);
+        }
+    }
+
+    /**
+     * Records the metadata of a stored copy of a chunk
+     * @param c
+     */
+    void remoteChunk(Chunk c) {
+        update("R" + c.getFileId() + c.getChunkNo(), new Dirty(null, c));
+    }
+
+    /**
+     * Records that a stored copy of a chunk was removed
+     * @param fileId
+     * @param chunkNo
+     */
+    synchronized void remoteChunkDeleted(String fileId, int chunkNo) {
+        this.dirty.remove("R" + fileId + chunkNo);
+        append(encode(REMOTE_CHUNK_DELETED, fileId, chunkNo));
+    }
+
+    /**
+     * Records that every stored chunk of a file was removed
+     * @param fileId
+     */
+    synchronized void remoteFileDeleted(String fileId) {
+        discard("R" + fileId);
+        append(encode(REMOTE_FILE_DELETED, fileId, -1));
+    }
+
+    /**
+     * Marks the chunk as changed, a burst of updates to the same chunk is written as a single record
+     * by the next flush, which reads the state of the chunk at that time
+     * @param key
+     * @param chunk
+     */
+    private void update(String key, Dirty chunk) {
+        this.updates.incrementAndGet();
+        if (this.dirty.put(key, chunk) == null && this.dirty.size() >= BATCH_SIZE && this.flushScheduled.compareAndSet(false, true)) {
+            Peer.getServer().getPool().execute(this::flush);
+        }
+    }
+
+    /**
+     * Forgets the pending updates of every chunk of a file, so they are not written after it is deleted
+     * @param prefix kind of the chunks followed by the fileId
+     */
+    private void discard(String prefix) {
+        this.dirty.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Appends an encoded record to the journal buffer
+     * @param record
+     */
+    private void append(byte[] record) {
+        boolean compact;
+        MetadataRecovery recovery = Peer.getServer().getRecovery();
+        synchronized (this) {
+            try {
+                this.out.write(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.journalSize += record.length;
+            // a snapshot taken before every file is loaded would miss their chunks
+            compact = this.journalSize > COMPACT_THRESHOLD && !this.compacting && recovery.isDone();
+            if (compact) {
+                this.compacting = true;
+            }
+        }
+        if (compact) {
+            Peer.getServer().getPool().execute(() -> compact(Peer.getServer()));
+        }
+    }
+
+    /**
+     * Appends a record for every chunk changed since the last flush and writes the buffered records
+     * to the journal file
+     */
+    synchronized void flush() {
+        this.flushScheduled.set(false);
+        for (Iterator<Map.Entry<String, Dirty>> it = this.dirty.entrySet().iterator(); it.hasNext(); ) {
+            Dirty chunk = it.next().getValue();
+            it.remove();
+            // a chunk deleted after it was marked must not be brought back by a record written after the deletion
+            if (!isLive(chunk)) {
+                continue;
+            }
+            append(chunk.name == null ? encodeRemoteChunk(chunk.chunk) : encodeLocalChunk(chunk.name, chunk.chunk));
+            this.records.incrementAndGet();
+        }
+        try {
+            this.out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The chunks are removed from their file before their deletion is recorded, a chunk that is still in its file
+     * has not been deleted yet
+     * @param chunk
+     * @return true if the chunk is the one kept by its file
+     */
+    private static boolean isLive(Dirty chunk) {
+        String fileId = chunk.chunk.getFileId();
+        int chunkNo = chunk.chunk.getChunkNo();
+        if (chunk.name == null) {
+            RemoteFile f = Peer.getServer().getStoredFiles().get(fileId);
+            return f != null && f.getChunks().get(chunkNo) == chunk.chunk;
+        }
+        File f = Peer.getServer().getMyFiles().get(fileId);
+        if (f == null) {
+            f = Peer.getServer().getWaitingForPurge().get(fileId);
+        }
+        return f != null && f.getChunks().get(chunkNo) == chunk.chunk;
+    }
+
+    /**
+     * Writes a snapshot of the current metadata and starts an empty journal, appends wait while it is written
+     * @param peer
+     */
+    synchronized void compact(Peer peer) {
+        Path tmp = this.folder.resolve("snapshot.tmp");
+        long next = this.epoch + 1;
+        try (DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 64 * 1024))) {
+            snapshot.writeLong(next);
+            writeLocalFiles(snapshot, peer.getMyFiles(), false);
+            writeLocalFiles(snapshot, peer.getWaitingForPurge(), true);
+            for (RemoteFile f : peer.getStoredFiles().values()) {
+                for (Chunk c : f.getChunks().values()) {
+                    snapshot.write(encodeRemoteChunk(c));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.compacting = false;
+            return;
+        }
+        try {
+            Files.move(tmp, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.out.close();
+            Files.deleteIfExists(journalPath(this.epoch));
+            this.epoch = next;
+            this.out = new BufferedOutputStream(new FileOutputStream(journalPath(this.epoch).toFile(), false), 64 * 1024);
+            this.journalSize = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.compacting = false;
+    }
+
+    /**
+     *
+     * @return number of chunk updates received
+     */
+    public long getUpdates() {
+        return this.updates.get();
+    }
+
+    /**
+     *
+     * @return number of chunk records written for those updates
+     */
+    public long getRecords() {
+        return this.records.get();
+    }
+
+    private void writeLocalFiles(OutputStream snapshot, Map<String, File> files, boolean purging) throws IOException {
+        for (File f : files.values()) {
+            if (f.isErasureCoded()) {
+                snapshot.write(encodeErasure(f));
+            }
+            if (f.getManifest() != null) {
+                for (byte[] record : encodeManifest(f)) {
+                    snapshot.write(record);
+                }
+            }
+            for (Chunk c : f.getChunks().values()) {
+                snapshot.write(encodeLocalChunk(f.getName(), c));
+            }
+            if (purging) {
+                snapshot.write(encode(PURGING, f.getFileId(), 1));
+            }
+        }
+    }
+
+    /**
+     * Maps the snapshot and the journal written after it, in the order they must be replayed
+     * @return records of the snapshot and of the journal, positioned at the first record
+     * @throws IOException
+     */
+    synchronized ByteBuffer[] map() throws IOException {
+        flush();
+        ByteBuffer[] logs = new ByteBuffer[2];
+        Path[] paths = {this.snapshotPath, journalPath(this.epoch)};
+        for (int i = 0; i < paths.length; i++) {
+            if (!Files.exists(paths[i])) {
+                logs[i] = ByteBuffer.allocate(0);
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(paths[i], StandardOpenOption.READ)) {
+                logs[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        // the snapshot starts with its epoch
+        logs[0].position(Math.min(8, logs[0].limit()));
+        return logs;
+    }
+
+    /**
+     * Applies a record to the maps being recovered
+     * @param record type and payload of the record
+     * @param localFiles
+     * @param purging
+     * @param storedFiles
+     * @throws IOException
+     */
+    static void apply(byte[] record, Map<String, File> localFiles, Map<String, Boolean> purging, Map<String, RemoteFile> storedFiles) throws IOException {
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String fileId = readFileId(in);
+        switch (type) {
+            case LOCAL_CHUNK -> {
+                int chunkNo = in.readInt();
+                int repDegree = in.readInt();
+                String name = in.readUTF();
+                File f = localFiles.get(fileId);
+                if (f == null) {
+                    f = new File(name, repDegree, fileId);
+                    localFiles.put(fileId, f);
+                }
+                Chunk c = new Chunk(chunkNo, fileId, repDegree);
+                int peers = in.readInt();
+                for (int i = 0; i < peers; i++) {
+                    c.getPeerList().put(in.readInt(), true);
+                }
+                c.setHash(readHash(in));
+                if (in.available() > 0) {
+                    c.setCodec(ChunkCodec.fromId(in.readByte()));
+                }
+                if (in.available() >= 4) {
+                    c.setChecksum(in.readInt());
+                }
+                f.putChunk(chunkNo, c);
+            }
+            case LOCAL_CHUNK_DELETED -> {
+                int chunkNo = in.readInt();
+                File f = localFiles.get(fileId);
+                if (f != null) {
+                    f.getChunks().remove(chunkNo);
+                }
+            }
+            case LOCAL_FILE_DELETED -> {
+                localFiles.remove(fileId);
+                purging.remove(fileId);
+            }
+            case PURGING -> {
+                if (in.readInt() == 1) {
+                    purging.put(fileId, true);
+                } else {
+                    purging.remove(fileId);
+                }
+            }
+            case REMOTE_CHUNK -> {
+                int chunkNo = in.readInt();
+                int peerCount = in.readInt();
+                int repDegree = in.readInt();
+                int size = in.readInt();
+                RemoteFile f = storedFiles.get(fileId);
+                if (f == null) {
+                    f = new RemoteFile(fileId);
+                    storedFiles.put(fileId, f);
+                }
+                Chunk c = new Chunk(chunkNo, fileId, repDegree, peerCount, size);
+                c.setHash(readHash(in));
+                if (in.available() >= 4) {
+                    int peers = in.readInt();
+                    for (int i = 0; i < peers; i++) {
+                        c.getPeerList().put(in.readInt(), true);
+                    }
+                }
+                if (in.available() >= 4) {
+                    c.setGroupSize(in.readInt());
+                }
+                f.getChunks().put(chunkNo, c);
+            }
+            case REMOTE_CHUNK_DELETED -> {
+                int chunkNo = in.readInt();
+                RemoteFile f = storedFiles.get(fileId);
+                if (f != null) {
+                    f.getChunks().remove(chunkNo);
+                }
+            }
+            case REMOTE_FILE_DELETED -> storedFiles.remove(fileId);
+            case ERASURE -> {
+                int dataShards = in.readInt();
+                int parityShards = in.readInt();
+                long size = in.readLong();
+                String name = in.readUTF();
+                File f = localFiles.get(fileId);
+                if (f == null) {
+                    f = new File(name, 1, fileId);
+                    localFiles.put(fileId, f);
+                }
+                f.setErasure(dataShards, parityShards, size);
+            }
+            case MANIFEST -> {
+                String name = in.readUTF();
+                File f = localFiles.get(fileId);
+                if (f == null) {
+                    f = new File(name, 1, fileId);
+                    localFiles.put(fileId, f);
+                }
+                Map<Integer, Integer> manifest = f.getManifest() != null ? f.getManifest() : new HashMap<>();
+                int chunks = in.readInt();
+                for (int i = 0; i < chunks; i++) {
+                    manifest.put(in.readInt(), in.readInt());
+                }
+                f.setManifest(manifest);
+            }
+            default -> throw new IOException("unknown metadata record " + type);
+        }
+    }
+
+    /**
+     * Reads the fileId of a record
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static String readFileId(InputStream in) throws IOException {
+        byte[] id = new byte[64];
+        new DataInputStream(in).readFully(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the hash of the contents at the end of a chunk record, records written before chunks were
+     * hashed do not have it
+     * @param in
+     * @return the hash or null
+     * @throws IOException
+     */
+    private static String readHash(DataInputStream in) throws IOException {
+        return in.available() >= 64 ? readFileId(in) : null;
+    }
+
+    private static void writeHash(DataOutputStream data, Chunk c) throws IOException {
+        if (c.getHash() != null) {
+            data.writeBytes(c.getHash());
+        }
+    }
+
+    private static byte[] encodeLocalChunk(String name, Chunk c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(LOCAL_CHUNK);
+            data.writeBytes(c.getFileId());
+            data.writeInt(c.getChunkNo());
+            data.writeInt(c.getRepDegree());
+            data.writeUTF(name);
+            Integer[] peers = c.getPeerList().keySet().toArray(new Integer[0]);
+            data.writeInt(peers.length);
+            for (Integer peer : peers) {
+                data.writeInt(peer);
+            }
+            writeHash(data, c);
+            // the codec and the checksum follow the hash, full chunks sent raw may have a checksum
+            if (c.getHash() != null && (c.getCodec() != ChunkCodec.RAW || c.getChecksum() != null)) {
+                data.writeByte(c.getCodec().ordinal());
+                if (c.getChecksum() != null) {
+                    data.writeInt(c.getChecksum());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeRemoteChunk(Chunk c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(REMOTE_CHUNK);
+            data.writeBytes(c.getFileId());
+            data.writeInt(c.getChunkNo());
+            data.writeInt(c.getPeerCount());
+            data.writeInt(c.getRepDegree());
+            data.writeInt(c.getSize());
+            writeHash(data, c);
+            // the peers that stored the chunk follow the hash, so its replication is still known after a restart
+            if (c.getHash() != null) {
+                Integer[] peers = c.getPeerList().keySet().toArray(new Integer[0]);
+                data.writeInt(peers.length);
+                for (Integer peer : peers) {
+                    data.writeInt(peer);
+                }
+                // then the group of a shard, so it is still stored as a shard after a restart
+                if (c.getGroupSize() != 0) {
+                    data.writeInt(c.getGroupSize());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * The manifest of a file cut by its contents lists most of its chunks, it is split in records of a bounded size
+     * @param f
+     * @return the records of the manifest
+     */
+    private static List<byte[]> encodeManifest(File f) {
+        List<byte[]> records = new ArrayList<>();
+        Iterator<Map.Entry<Integer, Integer>> chunks = f.getManifest().entrySet().iterator();
+        do {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream data = new DataOutputStream(bytes);
+            try {
+                data.writeByte(MANIFEST);
+                data.writeBytes(f.getFileId());
+                data.writeUTF(f.getName());
+                int count = Math.min(MANIFEST_CHUNKS, f.getManifest().size() - records.size() * MANIFEST_CHUNKS);
+                data.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    Map.Entry<Integer, Integer> chunk = chunks.next();
+                    data.writeInt(chunk.getKey());
+                    data.writeInt(chunk.getValue());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            records.add(frame(bytes.toByteArray()));
+        } while (chunks.hasNext());
+        return records;
+    }
+
+    private static byte[] encodeErasure(File f) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(ERASURE);
+            data.writeBytes(f.getFileId());
+            data.writeInt(f.getDataShards());
+            data.writeInt(f.getParityShards());
+            data.writeLong(f.getSize());
+            data.writeUTF(f.getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encode(byte type, String fileId, int value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(80);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeByte(type);
+            data.writeBytes(fileId);
+            if (value >= 0) {
+                data.writeInt(value);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Adds the length before the record and its checksum after it
+     * @param record
+     * @return
+     */
+    private static byte[] frame(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 8);
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeInt(record.length);
+            data.write(record);
+            data.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,306 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Rebuilds the metadata of the peer from the journal while the peer is already serving messages.
+ * A single pass splits the snapshot and the journal into records and groups them by file, the groups
+ * are then verified and applied in parallel on a fork join pool. A message about a file that was not
+ * loaded yet loads that file first, or waits for the worker that is loading it
+ */
+public class MetadataRecovery {
+    private static final int MAX_RECORD = 1024 * 1024;
+    private static final int FILES_PER_TASK = 16;
+
+    private Peer peer;
+    private ByteBuffer[] logs = new ByteBuffer[0];
+    private Map<String, Group> groups = new HashMap<>();
+    private CountDownLatch indexed = new CountDownLatch(1);
+    private CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean finished = false;
+    private AtomicLong records = new AtomicLong(0);
+    private AtomicLong corrupted = new AtomicLong(0);
+    private AtomicLong loadedOnDemand = new AtomicLong(0);
+    private long bytes = 0;
+    private long duration = -1;
+
+    public MetadataRecovery(Peer peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Records of one file, kept as the log they are in and their offset
+     */
+    private class Group {
+        private String fileId;
+        private long[] positions = new long[4];
+        private int size = 0;
+        private AtomicBoolean claimed = new AtomicBoolean(false);
+        private CountDownLatch loaded = new CountDownLatch(1);
+
+        Group(String fileId) {
+            this.fileId = fileId;
+        }
+
+        void add(int log, int offset) {
+            if (this.size == this.positions.length) {
+                this.positions = Arrays.copyOf(this.positions, this.size * 2);
+            }
+            this.positions[this.size++] = ((long) log << 32) | offset;
+        }
+
+        /**
+         * Loads the file unless another thread already is, in which case it waits for it
+         * @param logs
+         * @return true if the file was loaded by this call
+         */
+        boolean load(ByteBuffer[] logs) {
+            if (!this.claimed.compareAndSet(false, true)) {
+                try {
+                    this.loaded.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+            try {
+                replay(this, logs);
+            } finally {
+                this.loaded.countDown();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fork join task that loads a range of files, splitting it while it is large
+     */
+    private static class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Group[] files;
+        private ByteBuffer[] logs;
+        private int from;
+        private int to;
+
+        LoadTask(Group[] files, ByteBuffer[] logs, int from, int to) {
+            this.files = files;
+            this.logs = logs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= FILES_PER_TASK) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.files[i].load(this.logs);
+                }
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new LoadTask(this.files, this.logs, this.from, middle), new LoadTask(this.files, this.logs, middle, this.to));
+        }
+    }
+
+    /**
+     * Indexes the journal and loads every file in the background
+     * @param journal
+     */
+    void start(MetadataJournal journal) {
+        long start = System.nanoTime();
+        try {
+            this.logs = journal.map();
+            index();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            this.indexed.countDown();
+        }
+        new Thread(() -> {
+            Group[] files = this.groups.values().toArray(new Group[0]);
+            int threads = Runtime.getRuntime().availableProcessors();
+            ForkJoinPool workers = new ForkJoinPool(threads);
+            try {
+                workers.invoke(new LoadTask(files, this.logs, 0, files.length));
+            } finally {
+                workers.shutdown();
+            }
+            finish(start, files.length, threads);
+        }, "metadata-recovery").start();
+    }
+
+    /**
+     * Marks the recovery as done when the metadata was read some other way
+     */
+    void skip() {
+        this.peer.getChunkStore().sweep();
+        this.finished = true;
+        this.duration = 0;
+        this.indexed.countDown();
+        this.done.countDown();
+    }
+
+    /**
+     * Splits the logs into records and groups their positions by file, in log order
+     */
+    private void index() {
+        Map<String, Group> groups = new LinkedHashMap<>();
+        byte[] id = new byte[64];
+        for (int log = 0; log < this.logs.length; log++) {
+            ByteBuffer buffer = this.logs[log];
+            int position = buffer.position();
+            while (position + 4 <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                // a record with a bad length, or cut short, ends the log
+                if (length < 1 + id.length || length > MAX_RECORD || position + 8L + length > buffer.limit()) {
+                    break;
+                }
+                buffer.get(position + 5, id);
+                String fileId = new String(id, StandardCharsets.US_ASCII);
+                groups.computeIfAbsent(fileId, Group::new).add(log, position);
+                position += 8 + length;
+                this.bytes += 8 + length;
+            }
+        }
+        this.groups = groups;
+    }
+
+    /**
+     * Verifies and applies every record of the file, then publishes the file in the peer maps
+     * @param group
+     * @param logs
+     */
+    private void replay(Group group, ByteBuffer[] logs) {
+        Map<String, File> localFiles = new HashMap<>(2);
+        Map<String, Boolean> purging = new HashMap<>(2);
+        Map<String, RemoteFile> storedFiles = new HashMap<>(2);
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < group.size; i++) {
+            ByteBuffer log = logs[(int) (group.positions[i] >>> 32)];
+            int position = (int) group.positions[i];
+            byte[] record = new byte[log.getInt(position)];
+            log.get(position + 4, record);
+            crc.reset();
+            crc.update(record);
+            if (log.getInt(position + 4 + record.length) != (int) crc.getValue()) {
+                this.corrupted.incrementAndGet();
+                continue;
+            }
+            try {
+                MetadataJournal.apply(record, localFiles, purging, storedFiles);
+            } catch (IOException e) {
+                this.corrupted.incrementAndGet();
+            }
+        }
+        this.records.addAndGet(group.size);
+
+        File local = localFiles.get(group.fileId);
+        if (local != null && !local.getChunks().isEmpty()) {
+            if (purging.containsKey(group.fileId)) {
+                this.peer.getWaitingForPurge().put(group.fileId, local);
+            } else {
+                this.peer.getMyFiles().put(group.fileId, local);
+            }
+        }
+        RemoteFile stored = storedFiles.get(group.fileId);
+        if (stored != null && !stored.getChunks().isEmpty()) {
+            this.peer.getStoredFiles().put(group.fileId, stored);
+            for (Chunk c : stored.getChunks().values()) {
+                this.peer.getChunkStore().recovered(c);
+                this.peer.getReclaimQueue().update(c);
+            }
+        }
+    }
+
+    /**
+     * Reports the duration and throughput of the recovery and releases the threads waiting for it
+     * @param start
+     * @param files
+     * @param threads
+     */
+    private void finish(long start, int files, int threads) {
+        this.duration = (System.nanoTime() - start) / 1000000;
+        long seconds = Math.max(this.duration, 1);
+        System.out.println("Recovered metadata of " + files + " files (" + this.records.get() + " records, "
+                + this.bytes / 1024 + " KB) in " + this.duration + " ms on " + threads + " threads ("
+                + this.records.get() * 1000 / seconds + " records/s, " + this.bytes * 1000 / 1024 / seconds + " KB/s, "
+                + this.loadedOnDemand.get() + " files loaded on demand, " + this.corrupted.get() + " corrupted records)");
+        this.groups = new HashMap<>();
+        this.logs = new ByteBuffer[0];
+        this.peer.getChunkStore().sweep();
+        this.finished = true;
+        this.done.countDown();
+    }
+
+    /**
+     * Makes sure the metadata of the file is loaded before it is used
+     * @param fileId
+     */
+    public void ensureLoaded(String fileId) {
+        if (this.finished || fileId == null) {
+            return;
+        }
+        try {
+            this.indexed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ByteBuffer[] logs = this.logs;
+        Group group = this.groups.get(fileId);
+        if (group == null || this.finished) {
+            return;
+        }
+        if (group.load(logs)) {
+            this.loadedOnDemand.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until the metadata of every file is loaded
+     */
+    public void awaitCompletion() {
+        try {
+            this.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * @return true if the metadata of every file is loaded
+     */
+    public boolean isDone() {
+        return this.finished;
+    }
+
+    /**
+     *
+     * @return duration of the recovery in milliseconds, -1 while it runs
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    /**
+     *
+     * @return number of records replayed
+     */
+    public long getRecords() {
+        return this.records.get();
+    }
+}
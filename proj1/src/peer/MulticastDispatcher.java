@@ -2,49 +2,173 @@ package peer;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
 
 public class MulticastDispatcher implements Runnable {
-    private MulticastSocket socket;
+    private DatagramChannel channel;
+    private DatagramChannel sendChannel;
     private int port;
     private String host;
     private InetAddress address;
-    private int bufferSize;
     private int peerId;
-    private ExecutorService pool = Executors.newFixedThreadPool(10);
+    private BufferPool buffers;
+    private ControlCoalescer coalescer;
+    private MessageScheduler scheduler;
+    private OutboundQueue outbound;
 
     public MulticastDispatcher(int port, String host, int bufferSize, int peerId) {
         this.port = port;
         this.host = host;
         try {
             this.address = InetAddress.getByName(host);
-            this.socket = new MulticastSocket(port);
-            this.socket.joinGroup(this.address);
-            this.socket.setTimeToLive(1);
+            StandardProtocolFamily family = this.address instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+            String configured = System.getProperty("peer.interface");
+            NetworkInterface networkInterface = getMulticastInterface(configured, this.address, family);
+
+            this.channel = DatagramChannel.open(family);
+            this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.channel.bind(new InetSocketAddress(port));
+            this.channel.join(this.address, networkInterface);
+
+            this.sendChannel = DatagramChannel.open(family);
+            // without a configured interface the system picks the one to send from, like MulticastSocket did
+            if (configured != null) {
+                this.sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+            this.sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            this.sendChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            this.sendChannel.connect(new InetSocketAddress(this.address, port));
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Could not join multicast group " + host + ": " + e.getMessage());
+            System.exit(1);
         }
-        this.bufferSize = bufferSize;
+        // enough buffers for every worker plus a backlog of queued messages
+        this.buffers = new BufferPool(bufferSize, 64);
 
         this.peerId = peerId;
 
+        int capacity = Integer.getInteger("peer.sendQueue", 4096);
+        long rate = Long.getLong("peer.sendRate", 0);
+        this.outbound = new OutboundQueue(this.sendChannel, host, capacity, rate);
+        Thread sender = new Thread(this.outbound, host + "-sender");
+        sender.setDaemon(true);
+        sender.start();
 
     }
 
     /**
-     * Sends a packet to the multicast socket
-     * @param packet
+     * Interface to join the group on, the one named by -Dpeer.interface, else the one the system sends the group's
+     * datagrams from and else the one of the address of the host
+     * @param configured name of the interface or null
+     * @param group multicast address
+     * @param family of the group address
+     * @return an interface that is up and has an address of the family
+     * @throws IOException if there is no such interface
      */
-    public synchronized void send(DatagramPacket packet) {
-        try {
-            this.socket.send(packet);
-        } catch (IOException e) {
+    private static NetworkInterface getMulticastInterface(String configured, InetAddress group, StandardProtocolFamily family) throws IOException {
+        NetworkInterface networkInterface;
+        if (configured != null) {
+            networkInterface = NetworkInterface.getByName(configured);
+            if (networkInterface == null) {
+                throw new IOException("no network interface named " + configured);
+            }
+        } else {
+            // connecting sends nothing, it only asks the system for the route to the group
+            try (DatagramChannel probe = DatagramChannel.open(family)) {
+                probe.connect(new InetSocketAddress(group, 9));
+                networkInterface = NetworkInterface.getByInetAddress(((InetSocketAddress) probe.getLocalAddress()).getAddress());
+            } catch (IOException e) {
+                networkInterface = null;
+            }
+            InetAddress local = InetAddress.getLocalHost();
+            if (networkInterface == null) {
+                networkInterface = NetworkInterface.getByInetAddress(local);
+            }
+            if (networkInterface == null) {
+                throw new IOException("no network interface has the address " + local.getHostAddress() + " of the host, choose one with -Dpeer.interface");
+            }
+        }
+        if (!networkInterface.isUp()) {
+            throw new IOException("network interface " + networkInterface.getName() + " is down");
+        }
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+            if ((address instanceof Inet4Address) == (family == StandardProtocolFamily.INET)) {
+                return networkInterface;
+            }
+        }
+        throw new IOException("network interface " + networkInterface.getName() + " has no " + (family == StandardProtocolFamily.INET ? "IPv4" : "IPv6") + " address");
+    }
+
+    /**
+     * Sets the scheduler that runs the handlers of the received messages, it may be shared with other channels
+     * @param scheduler
+     */
+    public void setScheduler(MessageScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the coalescer used by sendControl
+     * @param coalescer
+     */
+    public void setCoalescer(ControlCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Sends a control message (STORED, GETCHUNK, REMOVED, DELETE, PURGED), it may share its datagram with others
+     * @param message header without body
+     */
+    public void sendControl(byte[] message) {
+        if (this.coalescer == null) {
+            send(ByteBuffer.wrap(message));
+        } else {
+            this.coalescer.offer(message);
         }
     }
 
+    /**
+     * Sends a packet to the multicast group
+     * @param packet
+     */
+    public void send(DatagramPacket packet) {
+        send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+    }
+
+    /**
+     * Queues the buffers to be sent as a single datagram with a gather write, the buffers are not copied
+     * and must not be changed after this call
+     * @param buffers
+     */
+    public void send(ByteBuffer... buffers) {
+        this.outbound.offer(null, buffers);
+    }
+
+    /**
+     * Queues the buffers to be sent as a single datagram, onSent runs once they are no longer needed
+     * @param onSent run after the datagram is sent or dropped, gives the buffers back to their owner
+     * @param buffers
+     */
+    public void send(Runnable onSent, ByteBuffer... buffers) {
+        this.outbound.offer(onSent, buffers);
+    }
+
+    /**
+     *
+     * @return queue of the datagrams waiting to be sent
+     */
+    public OutboundQueue getOutbound() {
+        return this.outbound;
+    }
+
     public int getPort() {
         return this.port;
     }
@@ -54,19 +178,29 @@ public class MulticastDispatcher implements Runnable {
     }
 
     /**
-     * Runs the loop that reads the incoming message
+     *
+     * @return pool of the buffers used to receive messages
+     */
+    public BufferPool getBufferPool() {
+        return this.buffers;
+    }
+
+    /**
+     * Runs the loop that reads the incoming message, each message is read into a pooled buffer
+     * that the Handler gives back once it is done, the handler is run by the scheduler
      */
     @Override
     public void run() {
         System.out.println(this.host + " Running");
         while (true) {
+            ByteBuffer buffer = this.buffers.acquire();
             try {
-                byte[] buffer = new byte[this.bufferSize];
-                DatagramPacket packet = new DatagramPacket(buffer, this.bufferSize);
-                this.socket.receive(packet);
+                this.channel.receive(buffer);
+                buffer.flip();
 
-                this.pool.execute(new Handler(packet, this.peerId));
+                this.scheduler.submit(buffer, new Handler(buffer, this.buffers, this.peerId));
             } catch (IOException e) {
+                this.buffers.release(buffer);
                 e.printStackTrace();
             }
         }
@@ -0,0 +1,196 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Datagrams waiting to be sent on a channel. Any thread can add datagrams without taking a lock,
+ * a single writer thread sends them in order, draining the queue in batches and optionally pacing
+ * the sends to a rate in bytes per second. Datagrams that do not fit in the queue are dropped and
+ * counted, like send errors
+ */
+public class OutboundQueue implements Runnable {
+    private static final int BATCH = 64;
+
+    private DatagramChannel channel;
+    private String name;
+    private int capacity;
+    private long rate;
+    private ConcurrentLinkedQueue<Datagram> queue = new ConcurrentLinkedQueue<>();
+    private AtomicInteger size = new AtomicInteger(0);
+    private volatile Thread writer;
+    private volatile boolean sleeping = false;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+    private AtomicLong sent = new AtomicLong(0);
+    private AtomicLong dropped = new AtomicLong(0);
+    private AtomicLong errors = new AtomicLong(0);
+
+    /**
+     * Buffers sent as one datagram and what to do once they are no longer needed
+     */
+    private static class Datagram {
+        private ByteBuffer[] buffers;
+        private Runnable onSent;
+
+        Datagram(ByteBuffer[] buffers, Runnable onSent) {
+            this.buffers = buffers;
+            this.onSent = onSent;
+        }
+
+        int size() {
+            int size = 0;
+            for (ByteBuffer buffer : this.buffers) {
+                size += buffer.remaining();
+            }
+            return size;
+        }
+    }
+
+    /**
+     *
+     * @param channel connected channel the datagrams are written to
+     * @param name used in the logs
+     * @param capacity maximum number of datagrams waiting
+     * @param rate maximum bytes sent per second, 0 for no limit
+     */
+    public OutboundQueue(DatagramChannel channel, String name, int capacity, long rate) {
+        this.channel = channel;
+        this.name = name;
+        this.capacity = capacity;
+        this.rate = rate;
+    }
+
+    /**
+     * Queues a datagram, the buffers must not be changed until onSent runs
+     * @param onSent run after the datagram is sent or dropped, may be null
+     * @param buffers contents of the datagram
+     * @return false if the queue was full and the datagram was dropped
+     */
+    public boolean offer(Runnable onSent, ByteBuffer... buffers) {
+        Datagram datagram = new Datagram(buffers, onSent);
+        if (this.size.incrementAndGet() > this.capacity) {
+            this.size.decrementAndGet();
+            this.dropped.incrementAndGet();
+            done(datagram);
+            return false;
+        }
+        this.queue.offer(datagram);
+        if (this.sleeping) {
+            LockSupport.unpark(this.writer);
+        }
+        return true;
+    }
+
+    /**
+     * Loop of the writer thread
+     */
+    @Override
+    public void run() {
+        this.writer = Thread.currentThread();
+        while (true) {
+            int batch = 0;
+            Datagram datagram;
+            while (batch < BATCH && (datagram = this.queue.poll()) != null) {
+                this.size.decrementAndGet();
+                write(datagram);
+                batch++;
+            }
+            if (batch == 0) {
+                this.sleeping = true;
+                if (this.queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                this.sleeping = false;
+            }
+        }
+    }
+
+    private void write(Datagram datagram) {
+        try {
+            pace(datagram.size());
+            this.channel.write(datagram.buffers);
+            this.sent.incrementAndGet();
+        } catch (IOException e) {
+            long errors = this.errors.incrementAndGet();
+            // log the first errors and then less and less often
+            if (Long.bitCount(errors) == 1) {
+                System.out.println(this.name + " send error (" + errors + " so far): " + e.getMessage());
+            }
+        } finally {
+            done(datagram);
+        }
+    }
+
+    /**
+     * Waits until the datagram fits in the rate, with a burst of up to 10 ms worth of bytes
+     * @param size
+     */
+    private void pace(int size) {
+        if (this.rate <= 0) {
+            return;
+        }
+        double burst = Math.max(this.rate / 100.0, size);
+        while (true) {
+            long now = System.nanoTime();
+            this.tokens = Math.min(burst, this.tokens + (now - this.lastRefill) * this.rate / 1e9);
+            this.lastRefill = now;
+            if (this.tokens >= size) {
+                this.tokens -= size;
+                return;
+            }
+            LockSupport.parkNanos((long) ((size - this.tokens) * 1e9 / this.rate));
+        }
+    }
+
+    private static void done(Datagram datagram) {
+        if (datagram.onSent != null) {
+            datagram.onSent.run();
+        }
+    }
+
+    /**
+     *
+     * @return number of datagrams sent
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     *
+     * @return number of datagrams dropped because the queue was full
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     *
+     * @return number of datagrams that could not be sent
+     */
+    public long getErrors() {
+        return this.errors.get();
+    }
+
+    /**
+     *
+     * @return sent, dropped and failed datagrams separated by slashes
+     */
+    public String getStats() {
+        return this.sent.get() + "/" + this.dropped.get() + "/" + this.errors.get();
+    }
+
+    /**
+     *
+     * @return number of datagrams waiting
+     */
+    public int getSize() {
+        return this.size.get();
+    }
+}
@@ -2,14 +2,10 @@ package peer;
 
 import test.RemoteInterface;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.MalformedURLException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -22,12 +18,8 @@ import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.WRITE;
-
 /**
  * Sinleton class that holds the peer info and implements the RemoteInterface (RMI server)
  */
@@ -43,13 +35,29 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
     private ConcurrentHashMap<String, RemoteFile> storedFiles;
     private ConcurrentHashMap<String, File> myFiles;
     private ScheduledExecutorService pool = Executors.newScheduledThreadPool(10);
+    private Retransmissions retransmissions = new Retransmissions(this.pool);
+    private ExecutionMode executionMode = ExecutionMode.fromProperties(this.pool);
+    // threads are cheap when each handler has its own, the limits only bound the load
+    private MessageScheduler scheduler = new MessageScheduler(Integer.getInteger("peer.controlWorkers", this.executionMode.isPerTask() ? 64 : 4),
+            Integer.getInteger("peer.dataWorkers", this.executionMode.isPerTask() ? 256 : 16), this.executionMode.getThreadFactory(), this.executionMode.isPerTask());
+    private MetadataJournal journal;
+    private MetadataRecovery recovery = new MetadataRecovery(this);
     private int chunkSize = 64000;
     private String serverName;
     private ConcurrentHashMap<String, RestoreFile> fileRestoring = new ConcurrentHashMap<>();
-    private AtomicLong maxSize = new AtomicLong(-1);
-    private AtomicLong currentSize = new AtomicLong(0);
-    private ConcurrentHashMap<String, Boolean> chunkQueue = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Chunk> waitingForPutchunk = new ConcurrentHashMap<>();
+    private ChunkServer chunkServer;
+    private ChunkStore chunkStore;
+    private ReclaimQueue reclaimQueue = new ReclaimQueue();
+    private ChunkCompression compression;
+    private CdcSource.Sizes cdc;
+    private ChunkCache chunkCache = new ChunkCache(Long.getLong("peer.cacheSize", 64 * 1024 * 1024));
+    private ConcurrentHashMap<String, ChunkConnection> chunkConnections = new ConcurrentHashMap<>();
+    private StorageQuota quota = new StorageQuota();
+    private FileHandles fileHandles = new FileHandles();
+    private ChunkMap<Boolean> chunkQueue = new ChunkMap<>(fileHandles);
+    private ChunkMap<Chunk> waitingForPutchunk = new ChunkMap<>(fileHandles);
+    private ChunkMap<Boolean> standbyBackups = new ChunkMap<>(fileHandles);
+    private ChunkMap<Boolean> storingChunks = new ChunkMap<>(fileHandles);
     private ConcurrentHashMap<String, File> waitingForPurge = new ConcurrentHashMap<>();
 
     private Peer(String version, long peerId, String accessPoint, Address mc, Address mdb, Address mdr) throws RemoteException {
@@ -64,17 +72,38 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
         this.accessPoint = accessPoint;
         this.version = version;
         this.peerId = peerId;
+        this.compression = new ChunkCompression(version);
+        this.cdc = CdcSource.Sizes.fromProperties(this.chunkSize);
+        if (this.cdc != null) {
+            System.out.println("Cutting files with FastCDC, chunk sizes " + this.cdc);
+        }
 
         this.serverName = Integer.toString((int) peerId) + "_folder";
+        this.journal = new MetadataJournal(this.serverName);
+        this.chunkStore = new ChunkStore(this.serverName);
+        this.pool.scheduleWithFixedDelay(this.journal::flush, 50, 50, TimeUnit.MILLISECONDS);
         this.storedFiles = new ConcurrentHashMap<>();
         this.myFiles = new ConcurrentHashMap<>();
 
         this.mc = new MulticastDispatcher(mc.port, mc.address, this.chunkSize+500, (int) peerId);
         this.mdb = new MulticastDispatcher(mdb.port, mdb.address, this.chunkSize+500, (int) peerId);
         this.mdr = new MulticastDispatcher(mdr.port, mdr.address, this.chunkSize+500, (int) peerId);
+        this.mc.setCoalescer(new ControlCoalescer(this.mc, Long.getLong("peer.coalesceWindow", 2), this.pool));
+        for (MulticastDispatcher channel : new MulticastDispatcher[]{this.mc, this.mdb, this.mdr}) {
+            channel.setScheduler(this.scheduler);
+        }
         new Thread(this.mc).start();
         new Thread(this.mdb).start();
         new Thread(this.mdr).start();
+        if (version.equals("1.1")) {
+            try {
+                this.chunkServer = new ChunkServer(this.executionMode);
+                new Thread(this.chunkServer).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
 
         System.out.println("Peer "+peerId+" is UP");
 
@@ -126,28 +155,44 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
         }
     }
 
-    public ConcurrentHashMap<String, Chunk> getWaitingForPutchunk() {
+    /**
+     *
+     * @return the numbers given to the fileIds with entries in the chunk maps
+     */
+    public FileHandles getFileHandles() {
+        return fileHandles;
+    }
+
+    public ChunkMap<Chunk> getWaitingForPutchunk() {
         return waitingForPutchunk;
     }
 
-    public ConcurrentHashMap<String, Boolean> getChunkQueue() {
+    public ChunkMap<Boolean> getChunkQueue() {
         return chunkQueue;
     }
 
     /**
-     * returns the maximum size that the peer must use with backup files
-     * @return the maximum size that the peer must use with backup files
+     *
+     * @return chunks removed by another peer that this peer will back up again unless a PUTCHUNK is seen first
+     */
+    public ChunkMap<Boolean> getStandbyBackups() {
+        return standbyBackups;
+    }
+
+    /**
+     *
+     * @return chunks a handler is storing, a PUTCHUNK of one of them is not stored again
      */
-    public AtomicLong getMaxSize() {
-        return maxSize;
+    public ChunkMap<Boolean> getStoringChunks() {
+        return storingChunks;
     }
 
     /**
      *
-     * @return the current size of the backed up files
+     * @return the maximum and current size of the backed up files
      */
-    public AtomicLong getCurrentSize() {
-        return currentSize;
+    public StorageQuota getQuota() {
+        return quota;
     }
 
     /**
@@ -159,9 +204,42 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
     }
 
     /**
-     * reads the metadata from the disc stored on the last peer session
+     * reads the metadata from the disc stored on the last peer session, metadata from the per chunk
+     * files of older sessions is moved into the journal. The journal is loaded in the background
      */
     private void readStoredInfo() {
+        boolean legacy = Files.exists(Path.of(this.serverName + "/.ldata")) || Files.exists(Path.of(this.serverName + "/.rdata"));
+        if (this.journal.isEmpty() && legacy) {
+            readLegacyInfo();
+            this.journal.compact(this);
+            for (String folder : new String[]{"/.ldata", "/.rdata"}) {
+                try {
+                    if (Files.exists(Path.of(this.serverName + folder))) {
+                        Files.walk(Path.of(this.serverName + folder))
+                                .sorted(Comparator.reverseOrder())
+                                .map(Path::toFile)
+                                .forEach(java.io.File::delete);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (RemoteFile rf : storedFiles.values()) {
+                for (Chunk c : rf.getChunks().values()) {
+                    this.chunkStore.recovered(c);
+                    this.reclaimQueue.update(c);
+                }
+            }
+            this.recovery.skip();
+        } else {
+            this.recovery.start(this.journal);
+        }
+    }
+
+    /**
+     * reads the metadata stored on one file per chunk under .ldata and .rdata by older sessions
+     */
+    private void readLegacyInfo() {
         try {
             if (Files.exists(Path.of(Peer.getServer().getServerName() + "/.ldata"))) {
                 Stream<java.io.File> directories_s = Files.walk(Path.of(Peer.getServer().getServerName() + "/.ldata/"), 1)
@@ -192,9 +270,10 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
                         } else {
                             continue;
                         }
-                        this.myFiles.put(f.getFileId(), f);
                         if (Files.exists(Path.of(Peer.getServer().getServerName() + "/.ldata/" + f.getFileId() + "/PURGING"))) {
                             this.waitingForPurge.put(f.getFileId(), f);
+                        } else {
+                            this.myFiles.put(f.getFileId(), f);
                         }
                     }
                 }
@@ -232,17 +311,92 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        for (RemoteFile rf : storedFiles.values()) {
-            for (Chunk c : rf.getChunks().values()) {
-                currentSize.addAndGet(c.getSize());
-            }
-        }
     }
 
     public ScheduledExecutorService getPool() {
         return this.pool;
     }
 
+    /**
+     *
+     * @return the journal where the chunk metadata is stored
+     */
+    public MetadataJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     *
+     * @return the server of the chunks restored by peers of version 1.1
+     */
+    public ChunkServer getChunkServer() {
+        return this.chunkServer;
+    }
+
+    /**
+     *
+     * @return the threads used by handlers and blocking transfers
+     */
+    public ExecutionMode getExecutionMode() {
+        return this.executionMode;
+    }
+
+    /**
+     *
+     * @return the store with the contents of the chunks kept by the peer
+     */
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    /**
+     *
+     * @return the stored chunks ordered by surplus replication
+     */
+    public ReclaimQueue getReclaimQueue() {
+        return reclaimQueue;
+    }
+
+    /**
+     *
+     * @return the compression of the chunks of the files backed up by the peer
+     */
+    public ChunkCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     *
+     * @return the cache of the stored chunks served to other peers
+     */
+    public ChunkCache getChunkCache() {
+        return this.chunkCache;
+    }
+
+    /**
+     *
+     * @return open connections to the chunk servers of other peers, by address and port
+     */
+    public ConcurrentHashMap<String, ChunkConnection> getChunkConnections() {
+        return this.chunkConnections;
+    }
+
+    /**
+     *
+     * @return the recovery of the metadata of the last session
+     */
+    public MetadataRecovery getRecovery() {
+        return this.recovery;
+    }
+
+    /**
+     *
+     * @return the timers used to retransmit messages of every subprotocol
+     */
+    public Retransmissions getRetransmissions() {
+        return this.retransmissions;
+    }
+
     /**
      *
      * @return chunk Default size
@@ -354,6 +508,51 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     @Override
     public String Backup(String filename, int replicationDegree) {
+        return backup(filename, replicationDegree, 0, 0, false);
+    }
+
+    /**
+     * Initiates the Backup protocol for a new version of a file already backed up, only the chunks that are not
+     * in the previous version are sent and the previous version is deleted once every chunk is stored
+     * @param filename
+     * @param replicationDegree
+     * @return
+     */
+    @Override
+    public String BackupDelta(String filename, int replicationDegree) {
+        return backup(filename, replicationDegree, 0, 0, true);
+    }
+
+    /**
+     * Initiates the Backup protocol with erasure coding, every group of dataShards chunks is sent as
+     * dataShards + parityShards shards stored by distinct peers and any dataShards of them rebuild the group
+     * @param filename
+     * @param dataShards
+     * @param parityShards
+     * @return
+     */
+    @Override
+    public String BackupErasure(String filename, int dataShards, int parityShards) {
+        if (!this.version.equals("1.1")) {
+            return "Erasure coded backup needs version 1.1";
+        }
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > 256) {
+            return "Invalid number of shards";
+        }
+        return backup(filename, 1, dataShards, parityShards, false);
+    }
+
+    /**
+     * Sends the chunks of the file, or its shards if dataShards is not 0
+     * @param filename
+     * @param replicationDegree
+     * @param dataShards
+     * @param parityShards
+     * @param delta send the file as a delta of its previous version
+     * @return
+     */
+    private String backup(String filename, int replicationDegree, int dataShards, int parityShards, boolean delta) {
+        this.recovery.awaitCompletion();
         long before = System.currentTimeMillis();
         Path newFilePath = Paths.get(filename);
         if (Files.exists(newFilePath)) {
@@ -364,19 +563,28 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
                 e.printStackTrace();
             }
             File f;
+            File previous = null;
+            Map<String, Integer> known;
             try {
                 f = new File(filename, replicationDegree);
                 if (this.myFiles.containsKey(File.getFileInfo(filename))) {
                     return "file already backed up";
                 }
+                // only 1.1 peers send and answer PUTREF messages, a 1.0 peer sends every body
+                known = this.version.equals("1.1") ? getKnownContents() : new HashMap<>();
                 for (File file : this.myFiles.values()) {
                     if (filename.compareTo(file.getName()) == 0) {
-                        deleteFile(file.getFileId());
+                        // the chunks of the previous version of a delta are referenced, it is deleted after the backup
+                        if (delta && dataShards == 0 && !file.isErasureCoded()) {
+                            previous = file;
+                        } else {
+                            deleteFile(file.getFileId());
+                        }
                         break;
                     }
                 }
                 if (waitingForPurge.containsKey(File.getFileInfo(filename))) {
-                    Files.delete(Path.of(Peer.getServer().getServerName() + "/.ldata/" + f.getFileId() + "/PURGING"));
+                    this.journal.purging(f.getFileId(), false);
                     waitingForPurge.remove(File.getFileInfo(filename));
                 }
                 this.myFiles.put(f.getFileId(), f);
@@ -385,11 +593,38 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
                 return "Error opening file";
             }
             try {
-                InputStream io = new FileInputStream(filename);
-                f.totalC = size / chunkSize;
-                send(f, replicationDegree, io, 0);
-
-                this.myFiles.get(f.getFileId()).setNumChunks((int) (size / Peer.peer.getChunkSize() + 1));
+                ChunkSource source;
+                if (dataShards > 0) {
+                    source = new ErasureSource(newFilePath, chunkSize, dataShards, parityShards);
+                    f.setErasure(dataShards, parityShards, size);
+                    this.journal.erasure(f);
+                } else if (this.cdc != null) {
+                    // boundaries that depend on the contents already line up with the chunks of the previous version
+                    CdcSource cdcSource = new CdcSource(newFilePath, chunkSize, this.cdc);
+                    long micros = Math.max(cdcSource.getNanos() / 1000, 1);
+                    System.out.println("Chunked " + filename + " in " + cdcSource.getNumChunks() + " chunks at " + size / micros + " MB/s");
+                    source = cdcSource;
+                } else if (previous != null) {
+                    DeltaSource deltaSource = new DeltaSource(newFilePath, chunkSize, previous.getChunks().values());
+                    System.out.println("Delta of " + filename + ": " + deltaSource.getMatched() + " of " + deltaSource.getNumChunks()
+                            + " chunks match the previous version");
+                    source = deltaSource;
+                } else {
+                    source = new ChunkSource(newFilePath, chunkSize);
+                }
+                if (source.getManifest() != null) {
+                    f.setManifest(source.getManifest());
+                    this.journal.manifest(f);
+                }
+                f.totalC = source.getNumChunks() - 1L;
+                f.setNumChunks(source.getNumChunks());
+                BackupSender sender = new BackupSender(f, replicationDegree, source, known);
+                if (previous != null) {
+                    String old = previous.getFileId();
+                    sender.setEnded(() -> deleteFile(old));
+                }
+                f.setSender(sender);
+                sender.start();
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -400,91 +635,68 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
     }
 
     /**
-     * recursively calls resends a backup message if the number of answers is smaller thant the desired replication degree
+     * Indexes the contents of the chunks of the files backed up by the peer, including the versions
+     * being deleted, whose chunks are kept by the other peers for a while
+     * @return number of peers known to store each content
+     */
+    private Map<String, Integer> getKnownContents() {
+        Map<String, Integer> known = new HashMap<>();
+        for (Map<String, File> files : List.of(this.myFiles, this.waitingForPurge)) {
+            for (File file : files.values()) {
+                if (file.isErasureCoded()) {
+                    continue;
+                }
+                for (Chunk c : file.getChunks().values()) {
+                    if (c.getHash() != null) {
+                        known.merge(c.getHash(), c.getPeerCount(), Math::max);
+                    }
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * recursively calls resends a backup message if the number of answers is smaller thant the desired replication degree,
+     * reporting acks, retries and give ups to the file's BackupSender. The pending try is cancelled by the sender
+     * once enough STORED messages arrive
      * @param i
-     * @param pool
-     * @param packet
+     * @param body chunk data, encoded again on every try
      * @param fileId
      * @param chunkNo
      * @param repDegree
+     * @param groupSize shards in a group of an erasure coded file, 0 to send a PUTCHUNK
+     * @param reference hash of the chunk if enough peers already store its contents, a PUTREF is sent instead
+     *                  of the body by a 1.1 peer and the retries send the PUTCHUNK
      */
-    private void backupAux(int i, ScheduledExecutorService pool, DatagramPacket packet, String fileId, int chunkNo, int repDegree) {
-        this.mdb.send(packet);
-        pool.schedule(() -> {
-            if (Peer.getServer().getMyFiles().get(fileId).getReplicationDegree(chunkNo) < repDegree) {
+    void backupAux(int i, ByteBuffer body, String fileId, int chunkNo, int repDegree, int groupSize, String reference) {
+        if (reference != null && this.version.equals("1.1")) {
+            this.mdb.send(ByteBuffer.wrap(MessageType.createPutref(this.version, (int) this.peerId, fileId, chunkNo, repDegree, reference)));
+        } else if (groupSize > 0) {
+            PutchunkEncoder.sendShard(this.mdb, (int) this.peerId, fileId, chunkNo, groupSize, body);
+        } else {
+            PutchunkEncoder.send(this.mdb, "1.0", (int) this.peerId, fileId, chunkNo, repDegree, body);
+        }
+        this.retransmissions.schedule("PUTCHUNK" + fileId + chunkNo, () -> {
+            File f = Peer.getServer().getMyFiles().get(fileId);
+            if (f == null || f.getSender() == null) {
+                return;
+            }
+            if (f.getReplicationDegree(chunkNo) < repDegree) {
                 if (i < 16) {
                     System.out.println("Again: " + i + " " + chunkNo);
-                    this.backupAux(i * 2, pool, packet, fileId, chunkNo, repDegree);
+                    f.getSender().retried(chunkNo);
+                    this.backupAux(i * 2, body, fileId, chunkNo, repDegree, groupSize, null);
                 } else {
                     System.out.println("Gave up");
+                    f.getSender().gaveUp(chunkNo);
                 }
+            } else {
+                f.getSender().acked(chunkNo);
             }
-            else{
-                File f = Peer.getServer().getMyFiles().get(fileId);
-                int a = f.doneC.getAndIncrement();  
-                if(a==f.totalC){
-                    if(f.totalC == 0){
-                    	System.out.println("Ended Backup fo file "+f.getName()+" in "+(System.currentTimeMillis()-f.initTime)+" ms");
-                    	f.doneC.set(0);
-                    	f.initTime = 0; 
-                    	return;               
-                    } 
-                    System.out.println("BACKUP "+Peer.getServer().getMyFiles().get(fileId).getName()+" "+ a*100/f.totalC+"% done");   
-                    System.out.println("Ended Backup fo file "+f.getName()+" in "+(System.currentTimeMillis()-f.initTime)+" ms");
-                    f.doneC.set(0);
-                    f.initTime = 0;
-                }   
-                else if(a % 5 == 0){
-                    System.out.println("BACKUP "+Peer.getServer().getMyFiles().get(fileId).getName()+" "+ a*100/f.totalC+"% done");      
-                }   
-                else if(f.totalC == 0){
-                    System.out.println("Ended Backup fo file "+f.getName()+" in "+(System.currentTimeMillis()-f.initTime)+" ms");
-                    f.doneC.set(0);
-                    f.initTime = 0;                
-                }           
-            }
-        }, i * 1000 + new Random().nextInt(401), TimeUnit.MILLISECONDS);
-    }
-
-    /**
-     * recursively sends the backup message every 10 + random(0-20) milliseconds,
-     * used to prevent busy waiting or socket monopoly
-     * @param f file to send
-     * @param replicationDegree
-     * @param io
-     * @param i
-     */
-    private void send(File f, int replicationDegree, InputStream io, int i) {
-        byte a[] = new byte[this.chunkSize];
-        this.myFiles.get(f.getFileId()).putChunk(i, new Chunk(i, f.getFileId(), replicationDegree));
-        int size = 0;
-        try {
-            size = io.read(a);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        if (size == -1 || size == 0) {
-            byte message[] = MessageType.createPutchunk("1.0", (int) this.peerId, f.getFileId(), i, replicationDegree, "".getBytes());
-            DatagramPacket packet = new DatagramPacket(message, message.length, this.mdb.getAddress(), this.mdb.getPort());
-            this.backupAux(1, this.pool, packet, f.getFileId(), i, replicationDegree);
-            return;
-        }
-        byte message[];
-        if (size == Peer.getServer().chunkSize) {
-            message = MessageType.createPutchunk("1.0", (int) this.peerId, f.getFileId(), i, replicationDegree, a);
-        } else {
-            byte[] subArray = Arrays.copyOfRange(a, 0, size);
-            message = MessageType.createPutchunk("1.0", (int) this.peerId, f.getFileId(), i, replicationDegree, subArray);
-        }
-        DatagramPacket packet = new DatagramPacket(message, message.length, this.mdb.getAddress(), this.mdb.getPort());
-
-        this.backupAux(1, this.pool, packet, f.getFileId(), i, replicationDegree);
-        if (size == this.chunkSize) {
-            this.pool.schedule(() -> send(f, replicationDegree, io, i + 1), (new Random().nextInt(20)) + 10, TimeUnit.MILLISECONDS);
-        }
+        }, i * 1000 + new Random().nextInt(401));
     }
 
-
     /**
      * initiates the restore protocol
      * @param filename
@@ -492,6 +704,7 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     @Override
     public boolean Restore(String filename) {
+        this.recovery.awaitCompletion();
         long before = System.currentTimeMillis();
 
         String fileID = null;
@@ -505,16 +718,42 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
             return false;
         }
 
-        ConcurrentHashMap<Integer, byte[]> receivedChunks = new ConcurrentHashMap<>();
-
-        this.fileRestoring.put(fileID, new RestoreFile(receivedChunks));
-        this.fileRestoring.get(fileID).setNumberOfChunks(new java.io.File(getServerName()+"/.ldata/"+fileID).listFiles().length);
+        String folder = this.serverName + "/restored";
+        String[] name = filename.split("/");
+        File f = this.myFiles.get(fileID);
+        // the chunks of an erasure coded file are its shards
+        int numberOfChunks = f.isErasureCoded() ? (int) (f.getSize() / this.chunkSize + 1) : f.getChunks().size();
+        RestoreFile restoring;
+        try {
+            Files.createDirectories(Path.of(folder));
+            restoring = new RestoreFile(Path.of(folder + "/" + name[name.length - 1]), numberOfChunks, this.chunkSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        RestoreFile previous = this.fileRestoring.put(fileID, restoring);
+        if (previous != null) {
+            previous.close();
+        }
 
-        for (Chunk chunk : this.myFiles.get(fileID).getChunks().values()) {
-            byte[] message = MessageType.createGetchunk("1.0", (int) this.peerId, fileID, chunk.getChunkNo());
-            DatagramPacket packet = new DatagramPacket(message, message.length, this.mc.getAddress(), this.mc.getPort());
-            String finalFileID = fileID;
-            pool.schedule(() -> RestoreAux(1, this.pool, packet, finalFileID, chunk.getChunkNo(), 1), new Random().nextInt(401), TimeUnit.MILLISECONDS);
+        if (f.getManifest() != null) {
+            restoring.setOffsets(f.getOffsets(numberOfChunks, this.chunkSize));
+        }
+        if (f.isErasureCoded()) {
+            ErasureRestore decoder = new ErasureRestore(f, restoring, this.chunkSize);
+            restoring.setDecoder(decoder);
+            decoder.start();
+        } else {
+            ChunkCodec[] codecs = new ChunkCodec[numberOfChunks];
+            for (Chunk c : f.getChunks().values()) {
+                if (c.getChunkNo() < numberOfChunks) {
+                    codecs[c.getChunkNo()] = c.getCodec();
+                }
+            }
+            restoring.setCodecs(codecs);
+            RestoreScheduler scheduler = new RestoreScheduler(fileID, restoring);
+            restoring.setScheduler(scheduler);
+            scheduler.start();
         }
 
         System.out.println("Restore Time for file " + fileID + ": " + (System.currentTimeMillis() - before));
@@ -523,21 +762,38 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
     }
 
     /**
-     * recursively resends the restore messag efor a chunk if it has not received an answer
+     * recursively resends the restore messag efor a chunk if it has not received an answer,
+     * the pending try is cancelled when the chunk arrives and the scheduler of the restore is told about retries
      * @param i
-     * @param pool
-     * @param packet
+     * @param message
      * @param fileID
      * @param chunkNo
      * @param t
      */
-    private void RestoreAux(int i, ScheduledExecutorService pool, DatagramPacket packet, String fileID, int chunkNo, int t) {
-        this.mc.send(packet);
-        pool.schedule(() -> {
-            if (i < 5 && this.fileRestoring.get(fileID) != null && !this.fileRestoring.get(fileID).getChunks().containsKey(chunkNo)) {
-                this.RestoreAux(i + 1, pool, packet, fileID, chunkNo, t * 2);
+    void RestoreAux(int i, byte[] message, String fileID, int chunkNo, int t) {
+        this.mc.sendControl(message);
+        this.retransmissions.schedule("GETCHUNK" + fileID + chunkNo, () -> {
+            RestoreFile restoring = this.fileRestoring.get(fileID);
+            if (restoring == null) {
+                return;
             }
-        }, new Random().nextInt(401) + t * 1000, TimeUnit.MILLISECONDS);
+            ErasureRestore decoder = restoring.getDecoder();
+            if (decoder != null ? decoder.has(chunkNo) : restoring.has(chunkNo)) {
+                return;
+            }
+            if (i < 5) {
+                if (decoder != null) {
+                    decoder.retried(chunkNo);
+                } else {
+                    restoring.getScheduler().retried(chunkNo);
+                }
+                this.RestoreAux(i + 1, message, fileID, chunkNo, t * 2);
+            } else if (decoder != null) {
+                decoder.gaveUp(chunkNo);
+            } else {
+                restoring.getScheduler().gaveUp(chunkNo);
+            }
+        }, new Random().nextInt(401) + t * 1000);
     }
 
     /**
@@ -547,6 +803,7 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     @Override
     public boolean Delete(String filename) {
+        this.recovery.awaitCompletion();
         long before = System.currentTimeMillis();
         String file = File.getFileInfo(filename);
         if (file == null) {
@@ -567,63 +824,23 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     private boolean deleteFile(String fileId) {
         if (this.version.equals("1.0")) {
-            byte message[] = MessageType.createDelete("1.0", (int) this.peerId, fileId);
-            DatagramPacket packet = new DatagramPacket(message, message.length, this.mc.getAddress(), this.mc.getPort());
-            try {
-                Files.walk(Path.of(Peer.getServer().getServerName() + "/.ldata/" + fileId))
-                        .sorted(Comparator.reverseOrder())
-                        .map(Path::toFile)
-                        .forEach(java.io.File::delete);
-            } catch (IOException e) {
+            if (!this.myFiles.containsKey(fileId)) {
                 return false;
             }
-            this.deleteAux(0, this.pool, packet);
+            byte message[] = MessageType.createDelete("1.0", (int) this.peerId, fileId);
+            this.journal.localFileDeleted(fileId);
+            this.deleteAux(0, message, fileId);
             this.myFiles.remove(fileId);
             return true;
         } else if (this.version.equals("1.1")) {
             if (this.myFiles.containsKey(fileId)) {
 
-                Path path = Paths.get(Peer.getServer().getServerName() + "/.ldata/" + fileId + "/PURGING");
-                AsynchronousFileChannel fileChannel = null;
-                try {
-                    fileChannel = AsynchronousFileChannel.open(
-                            path, WRITE, CREATE);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-                byte out[] = "".getBytes();
-                ByteBuffer buffer = ByteBuffer.allocate(out.length);
-
-                buffer.put(out);
-                buffer.flip();
-
-                fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, AsynchronousFileChannel>() {
-                @Override
-                public void completed(Integer result, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, AsynchronousFileChannel attachment) {
-                    try {
-                        attachment.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-                buffer.clear();
+                this.journal.purging(fileId, true);
 
                 byte message[] = MessageType.createDelete("1.1", (int) this.peerId, fileId);
-                DatagramPacket packet = new DatagramPacket(message, message.length, this.mc.getAddress(), this.mc.getPort());
                 waitingForPurge.put(fileId, this.myFiles.get(fileId));
                 this.myFiles.remove(fileId);
-                this.deleteAux(0, this.pool, packet);
+                this.deleteAux(0, message, fileId);
                 return true;
             }
             return false;
@@ -632,18 +849,21 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
     }
 
     /**
-     * sends the delete 5 times
+     * sends the delete 5 times, on version 1.1 it stops once every peer answered with PURGED
      * @param i
-     * @param pool
-     * @param packet
+     * @param message
+     * @param fileId
      */
-    private void deleteAux(int i, ScheduledExecutorService pool, DatagramPacket packet) {
-        this.mc.send(packet);
-        pool.schedule(() -> {
+    private void deleteAux(int i, byte[] message, String fileId) {
+        this.mc.sendControl(message);
+        this.retransmissions.schedule("DELETE" + fileId, () -> {
+            if (this.version.equals("1.1") && !this.waitingForPurge.containsKey(fileId)) {
+                return;
+            }
             if (i < 5) {
-                this.deleteAux(i + 1, pool, packet);
+                this.deleteAux(i + 1, message, fileId);
             }
-        }, new Random().nextInt(401), TimeUnit.MILLISECONDS);
+        }, new Random().nextInt(401));
     }
 
     /**
@@ -652,40 +872,37 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     @Override
     public void Reclaim(long maxSpace) {
+        this.recovery.awaitCompletion();
         long before = System.currentTimeMillis();
 
-        maxSize.set(maxSpace);
+        quota.setLimit(maxSpace);
 
 
-        if (currentSize.get() > maxSpace) {
-
-
-            List<Chunk> cleanable = new ArrayList<>();
-            for (RemoteFile file : this.storedFiles.values()) {
-                cleanable.addAll(file.getChunks().values());
+        // contents kept after their last chunk was deleted go first
+        if (quota.getUsed() > maxSpace) {
+            this.chunkStore.purge();
+        }
+        // the chunks stored by the most peers beyond their desired degree go first, they are the least missed
+        int removed = 0;
+        long freed = 0;
+        while (quota.getUsed() > quota.getLimit()) {
+            Chunk chunk = this.reclaimQueue.poll();
+            if (chunk == null) {
+                break;
             }
-            cleanable.sort(new Comparator<>() {
-                @Override
-                public int compare(Chunk o1, Chunk o2) {
-                    return (o1.getRealDegree() - o1.getRepDegree()) - (o2.getRealDegree() - o2.getRepDegree());
-                }
-            });
-
-            for (Chunk chunk : cleanable) {
-                if (storedFiles.get(chunk.getFileId()).deleteChunk(chunk.getChunkNo())) {
-                    currentSize.addAndGet(-chunk.getSize());
-                    byte message[] = MessageType.createRemoved("1.0", (int) this.peerId, chunk.getFileId(), chunk.getChunkNo());
-                    DatagramPacket packet = new DatagramPacket(message, message.length, this.mc.getAddress(), this.mc.getPort());
-                    this.mc.send(packet);
-
-                    if (currentSize.get() <= maxSize.get()) {
-                        break;
-                    }
-                }
+            RemoteFile file = storedFiles.get(chunk.getFileId());
+            if (file == null || file.getChunks().get(chunk.getChunkNo()) != chunk) {
+                continue;
+            }
+            if (file.deleteChunk(chunk.getChunkNo())) {
+                freed += this.chunkStore.free(chunk.getHash());
+                removed++;
+                byte message[] = MessageType.createRemoved("1.0", (int) this.peerId, chunk.getFileId(), chunk.getChunkNo());
+                this.mc.sendControl(message);
             }
         }
 
-        System.out.println("Reclaim Time : " + (System.currentTimeMillis() - before));
+        System.out.println("Reclaim Time : " + (System.currentTimeMillis() - before) + " (" + removed + " chunks removed, " + freed + " bytes freed)");
     }
 
     /**
@@ -695,17 +912,36 @@ public class Peer extends UnicastRemoteObject implements RemoteInterface {
      */
     @Override
     public String State() throws RemoteException {
+        this.recovery.awaitCompletion();
         String out = "";
         out += ("Backed Up Files Owned by the peer\n");
-        out += "Max Size: " + Peer.getServer().getMaxSize().get() + "\n";
-        out += "Current Size: " + Peer.getServer().getCurrentSize().get() + "\n";
+        out += "Max Size: " + this.quota.getLimit() + "\n";
+        out += "Current Size: " + this.quota.getUsed() + "\n";
+        out += "Storage quota: " + this.quota.getStats() + "\n";
+        out += "Metadata recovery: " + this.recovery.getRecords() + " records in " + this.recovery.getDuration() + " ms\n";
+        out += "Metadata updates (received/written): " + this.journal.getUpdates() + "/" + this.journal.getRecords() + "\n";
+        out += "Chunk store: " + this.chunkStore.getStats() + "\n";
+        out += "Reclaim queue: " + this.reclaimQueue.size() + " chunks\n";
+        out += "Chunk compression: " + this.compression.getStats() + "\n";
+        out += String.format("Chunk cache: %d bytes, hit ratio %.2f, %d bytes served%n", this.chunkCache.getSize(), this.chunkCache.getHitRatio(), this.chunkCache.getBytesServed());
+        out += "Message scheduler: " + this.scheduler.getStats() + "\n";
+        out += "Pending retransmission timers: " + this.retransmissions.getPending() + "\n";
+        out += "Receive buffers (hits/misses): MC " + this.mc.getBufferPool().getHits() + "/" + this.mc.getBufferPool().getMisses()
+                + ", MDB " + this.mdb.getBufferPool().getHits() + "/" + this.mdb.getBufferPool().getMisses()
+                + ", MDR " + this.mdr.getBufferPool().getHits() + "/" + this.mdr.getBufferPool().getMisses() + "\n";
+        out += "Outbound datagrams (sent/dropped/errors): MC " + this.mc.getOutbound().getStats()
+                + ", MDB " + this.mdb.getOutbound().getStats() + ", MDR " + this.mdr.getOutbound().getStats() + "\n";
 
         if(this.myFiles.size()>0) {
             out += "\nMy Files: " + "\n";
             for (File f : this.myFiles.values()) {
                 out += "\n    Name:               " + f.getName() + "\n";
                 out += "    FileID:             " + f.getFileId() + "\n";
-                out += "    Desired Rep Degree: " + ((Chunk) f.getChunks().values().toArray()[0]).getRepDegree() + "\n";
+                if (f.isErasureCoded()) {
+                    out += "    Erasure Coding:     " + f.getDataShards() + " data + " + f.getParityShards() + " parity shards per group\n";
+                } else {
+                    out += "    Desired Rep Degree: " + ((Chunk) f.getChunks().values().toArray()[0]).getRepDegree() + "\n";
+                }
                 out += "    CHUNKS: \n";
                 for (Chunk c : f.getChunks().values()) {
                     out += "        CHUNK NO:     " + c.getChunkNo() + "\n";
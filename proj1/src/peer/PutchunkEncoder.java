@@ -0,0 +1,96 @@
+package peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes PUTCHUNK and PUTSHARD headers into pooled direct buffers and sends header and body with a single gather write,
+ * the body is never copied to the heap. Headers go back to the pool once the send queue has sent them
+ */
+public class PutchunkEncoder {
+    private static final int HEADER_SIZE = 256;
+    private static final int POOL_SIZE = 64;
+    private static ConcurrentLinkedQueue<ByteBuffer> headers = new ConcurrentLinkedQueue<>();
+
+    private PutchunkEncoder() {
+    }
+
+    /**
+     * Encodes and sends a putchunk message
+     * @param dispatcher channel used to send the message
+     * @param version
+     * @param senderId
+     * @param fileId
+     * @param chunkNo
+     * @param replicationDegree
+     * @param body chunk data, its position is not changed
+     */
+    public static void send(MulticastDispatcher dispatcher, String version, int senderId, String fileId, int chunkNo, int replicationDegree, ByteBuffer body) {
+        send(dispatcher, version, " PUTCHUNK ", senderId, fileId, chunkNo, replicationDegree, body);
+    }
+
+    /**
+     * Encodes and sends a putshard message, with a shard of an erasure coded file
+     * @param dispatcher channel used to send the message
+     * @param senderId
+     * @param fileId
+     * @param shardNo
+     * @param groupSize number of shards of a group, k + m
+     * @param body shard data, its position is not changed
+     */
+    public static void sendShard(MulticastDispatcher dispatcher, int senderId, String fileId, int shardNo, int groupSize, ByteBuffer body) {
+        send(dispatcher, "1.1", " PUTSHARD ", senderId, fileId, shardNo, groupSize, body);
+    }
+
+    /**
+     * Both messages have the same fields, the last one is the replication degree or the group size
+     */
+    private static void send(MulticastDispatcher dispatcher, String version, String type, int senderId, String fileId, int chunkNo, int last, ByteBuffer body) {
+        ByteBuffer header = headers.poll();
+        if (header == null) {
+            header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        }
+        header.clear();
+        putAscii(header, version);
+        putAscii(header, type);
+        putInt(header, senderId);
+        header.put((byte) ' ');
+        putAscii(header, fileId);
+        header.put((byte) ' ');
+        putInt(header, chunkNo);
+        header.put((byte) ' ');
+        putInt(header, last);
+        putAscii(header, " \r\n\r\n");
+        header.flip();
+
+        ByteBuffer sent = header;
+        dispatcher.send(() -> {
+            if (headers.size() < POOL_SIZE) {
+                headers.offer(sent);
+            }
+        }, header, body.duplicate());
+    }
+
+    /**
+     * Writes an ascii string to the buffer
+     * @param buffer
+     * @param s
+     */
+    static void putAscii(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the decimal digits of a non negative number to the buffer
+     * @param buffer
+     * @param n
+     */
+    static void putInt(ByteBuffer buffer, int n) {
+        if (n >= 10) {
+            putInt(buffer, n / 10);
+        }
+        buffer.put((byte) ('0' + n % 10));
+    }
+}
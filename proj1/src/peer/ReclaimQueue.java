@@ -0,0 +1,125 @@
+package peer;
+
+import java.util.Arrays;
+
+/**
+ * Stored chunks ordered by how many more peers store them than their desired replication degree, the chunk
+ * with the most surplus first and the largest one among equals. It is a binary heap where every chunk knows
+ * its position, so the order is kept up to date on every STORED and REMOVED in O(log n) and Reclaim takes
+ * its victims from the top instead of sorting every stored chunk
+ */
+public class ReclaimQueue {
+    private Chunk[] heap = new Chunk[1024];
+    private int size = 0;
+
+    /**
+     * Adds the chunk or moves it to its place after its replication changed
+     * @param c stored chunk
+     */
+    synchronized void update(Chunk c) {
+        long key = key(c);
+        int position = c.getReclaimPosition();
+        if (position < 0) {
+            if (this.size == this.heap.length) {
+                this.heap = Arrays.copyOf(this.heap, this.size * 2);
+            }
+            c.setReclaimKey(key);
+            place(c, this.size++);
+            up(this.size - 1);
+            return;
+        }
+        long old = c.getReclaimKey();
+        c.setReclaimKey(key);
+        if (key > old) {
+            up(position);
+        } else if (key < old) {
+            down(position);
+        }
+    }
+
+    /**
+     * Removes a chunk that is no longer stored
+     * @param c
+     */
+    synchronized void remove(Chunk c) {
+        int position = c.getReclaimPosition();
+        if (position < 0) {
+            return;
+        }
+        Chunk last = this.heap[--this.size];
+        this.heap[this.size] = null;
+        c.setReclaimPosition(-1);
+        if (position == this.size) {
+            return;
+        }
+        place(last, position);
+        up(position);
+        down(last.getReclaimPosition());
+    }
+
+    /**
+     * Removes the chunk with the most surplus
+     * @return the chunk or null if there are none
+     */
+    synchronized Chunk poll() {
+        if (this.size == 0) {
+            return null;
+        }
+        Chunk top = this.heap[0];
+        remove(top);
+        return top;
+    }
+
+    /**
+     *
+     * @return number of chunks in the queue
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @param c
+     * @return surplus replication in the high bits and size in the low bits
+     */
+    private static long key(Chunk c) {
+        return ((long) (c.getPeerCount() - c.getRepDegree()) << 32) | (c.getSize() & 0xffffffffL);
+    }
+
+    private void place(Chunk c, int position) {
+        this.heap[position] = c;
+        c.setReclaimPosition(position);
+    }
+
+    private void up(int position) {
+        Chunk c = this.heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (this.heap[parent].getReclaimKey() >= c.getReclaimKey()) {
+                break;
+            }
+            place(this.heap[parent], position);
+            position = parent;
+        }
+        place(c, position);
+    }
+
+    private void down(int position) {
+        Chunk c = this.heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= this.size) {
+                break;
+            }
+            if (child + 1 < this.size && this.heap[child + 1].getReclaimKey() > this.heap[child].getReclaimKey()) {
+                child++;
+            }
+            if (this.heap[child].getReclaimKey() <= c.getReclaimKey()) {
+                break;
+            }
+            place(this.heap[child], position);
+            position = child;
+        }
+        place(c, position);
+    }
+}
@@ -0,0 +1,209 @@
+package peer;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). A group of k data shards is extended with m parity shards
+ * and any k of the k+m shards are enough to rebuild the data. The encoding matrix is a Vandermonde matrix
+ * turned systematic, so the first k shards are the data itself and only lost data shards need decoding.
+ * Shards shorter than the group length are read as if padded with zeros
+ */
+public class ReedSolomon {
+    private static final int POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private int dataShards;
+    private int parityShards;
+    private byte[][] matrix;
+
+    /**
+     *
+     * @param dataShards k, at least 1
+     * @param parityShards m, k + m can not be more than 256
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("invalid shard counts " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = invert(Arrays.copyOf(vandermonde, dataShards));
+        this.matrix = multiply(vandermonde, top);
+    }
+
+    /**
+     * Computes the parity shards of a group
+     * @param data the k data shards, may be shorter than length
+     * @param length size of the parity shards
+     * @return the m parity shards
+     */
+    public byte[][] encode(byte[][] data, int length) {
+        byte[][] parity = new byte[this.parityShards][length];
+        for (int p = 0; p < this.parityShards; p++) {
+            combine(this.matrix[this.dataShards + p], data, parity[p]);
+        }
+        return parity;
+    }
+
+    /**
+     * Rebuilds the missing data shards of a group in place
+     * @param shards the k+m shards of the group, null where missing
+     * @param length size of the shards of the group
+     * @return false if less than k shards are present
+     */
+    public boolean decode(byte[][] shards, int length) {
+        int[] present = new int[this.dataShards];
+        int count = 0;
+        for (int i = 0; i < shards.length && count < this.dataShards; i++) {
+            if (shards[i] != null) {
+                present[count++] = i;
+            }
+        }
+        if (count < this.dataShards) {
+            return false;
+        }
+        byte[][] rows = new byte[this.dataShards][];
+        byte[][] inputs = new byte[this.dataShards][];
+        for (int i = 0; i < this.dataShards; i++) {
+            rows[i] = this.matrix[present[i]];
+            inputs[i] = shards[present[i]];
+        }
+        byte[][] decoder = invert(rows);
+        for (int d = 0; d < this.dataShards; d++) {
+            if (shards[d] == null) {
+                shards[d] = new byte[length];
+                combine(decoder[d], inputs, shards[d]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the product of each coefficient and its shard to the output
+     * @param coefficients
+     * @param shards
+     * @param out
+     */
+    private static void combine(byte[] coefficients, byte[][] shards, byte[] out) {
+        for (int c = 0; c < coefficients.length; c++) {
+            byte[] row = MUL[coefficients[c] & 0xff];
+            byte[] shard = shards[c];
+            int length = Math.min(shard.length, out.length);
+            for (int i = 0; i < length; i++) {
+                out[i] ^= row[shard[i] & 0xff];
+            }
+        }
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[LOG[base] * exponent % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= MUL[a[r][i] & 0xff][b[i][c] & 0xff];
+                }
+                out[r][c] = (byte) value;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Inverts a square matrix with Gauss-Jordan elimination
+     * @param matrix
+     * @return the inverse, the matrix is not changed
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("singular matrix");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+            byte[] scale = MUL[EXP[255 - LOG[work[c][c] & 0xff]] & 0xff];
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = scale[work[c][i] & 0xff];
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != c && work[r][c] != 0) {
+                    byte[] factor = MUL[work[r][c] & 0xff];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= factor[work[c][i] & 0xff];
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            inverse[r] = Arrays.copyOfRange(work[r], n, 2 * n);
+        }
+        return inverse;
+    }
+
+    /**
+     *
+     * @return number of data shards of a group
+     */
+    public int getDataShards() {
+        return this.dataShards;
+    }
+
+    /**
+     *
+     * @return number of parity shards of a group
+     */
+    public int getParityShards() {
+        return this.parityShards;
+    }
+}
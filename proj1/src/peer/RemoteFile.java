@@ -6,7 +6,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Used to store metadata from files that the peer has backed up
@@ -17,11 +16,6 @@ public class RemoteFile {
 
     public RemoteFile(String fileId) {
         this.fileId = fileId;
-        try {
-            Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.rdata"));
-            Files.createDirectories(Path.of(Peer.getServer().getServerName() + "/.rdata/" + fileId));
-        } catch (IOException e) {
-        }
     }
 
     /**
@@ -30,30 +24,50 @@ public class RemoteFile {
      * @param peerId
      */
     void addStored(int chunkNo, int peerId) {
-        if (this.chunks.containsKey(chunkNo)) {
-            if (!this.chunks.get(chunkNo).getPeerList().containsKey(peerId)) {
-                this.chunks.get(chunkNo).getPeerList().put(peerId, true);
+        // the chunk may be deleted meanwhile, it is read once
+        Chunk c = this.chunks.get(chunkNo);
+        if (c != null) {
+            if (!c.getPeerList().containsKey(peerId)) {
+                c.getPeerList().put(peerId, true);
+            }
+            if (c.getPeerCount() >= c.getRepDegree()) {
+                Peer.getServer().getRetransmissions().cancel("REMOVED" + this.fileId + chunkNo);
             }
-            this.chunks.get(chunkNo).updateRdata();
+            c.updateRdata();
+            dropDuplicateShard(chunkNo, peerId);
+        }
+    }
+
+    /**
+     * Keeps a single copy of a shard stored by more than one peer, the peer with the lowest id keeps it
+     * and the others remove theirs, so they can store another shard of the group
+     * @param chunkNo
+     * @param peerId peer that also stored the chunk
+     */
+    private void dropDuplicateShard(int chunkNo, int peerId) {
+        Chunk c = this.chunks.get(chunkNo);
+        // the peer list of a shard stored while STORED messages arrived also has this peer, it is not a duplicate
+        if (c == null || c.getGroupSize() == 0 || peerId >= Peer.getServer().getPeerId()) {
+            return;
+        }
+        if (deleteChunk(chunkNo)) {
+            Peer.getServer().getMc().sendControl(MessageType.createRemoved("1.1", (int) Peer.getServer().getPeerId(), this.fileId, chunkNo));
         }
     }
 
     /**
-     * deletes the chunks and the metadata stored on the disk
+     * deletes the chunks stored on the disk and in the cache and records it on the journal
      */
     void delete() {
-        int sum = 0;
         for (Chunk c : chunks.values()) {
-            sum += c.getSize();
+            Peer.getServer().getReclaimQueue().remove(c);
+            Peer.getServer().getChunkStore().release(c);
         }
-        Peer.getServer().getCurrentSize().addAndGet(-sum);
 
-        try {
-            Files.walk(Path.of(Peer.getServer().getServerName() + "/.rdata/" + this.fileId))
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(File::delete);
+        Peer.getServer().getJournal().remoteFileDeleted(this.fileId);
+        Peer.getServer().getChunkCache().invalidateFile(this.fileId);
 
+        try {
             Files.walk(Path.of(Peer.getServer().getServerName() + "/" + this.fileId))
                     .sorted(Comparator.reverseOrder())
                     .map(Path::toFile)
@@ -65,19 +79,21 @@ public class RemoteFile {
     }
 
     /**
-     * removes a chunk
+     * removes a chunk from the disk and from the cache, its contents are released from the chunk store
      * @param chunkId
      * @return true if it could remove the chunk
      */
     public boolean deleteChunk(int chunkId) {
-        if (chunks.containsKey(chunkId)) {
-            chunks.remove(chunkId);
-            Path rInfo = Path.of(Peer.getServer().getServerName() + "/.rdata/" + this.fileId + "/" + chunkId);
+        Chunk c = chunks.remove(chunkId);
+        if (c != null) {
+            Peer.getServer().getReclaimQueue().remove(c);
+            Peer.getServer().getJournal().remoteChunkDeleted(this.fileId, chunkId);
+            Peer.getServer().getChunkCache().invalidate(this.fileId, chunkId);
             Path chunkData = Path.of(Peer.getServer().getServerName() + "/" + this.fileId + "/" + chunkId);
-            if (Files.exists(rInfo) && Files.exists(chunkData)) {
+            if (Files.exists(chunkData)) {
                 try {
-                    Files.delete(rInfo);
                     Files.delete(chunkData);
+                    Peer.getServer().getChunkStore().release(c);
                     return true;
                 } catch (IOException e) {
                     e.printStackTrace();
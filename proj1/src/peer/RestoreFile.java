@@ -1,30 +1,191 @@
 package peer;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
- * used to store the data of a file while restoring it
+ * used to write a file while restoring it, every chunk is written at its offset as soon as it arrives
+ * and a bitmap keeps which chunks were already written
  */
 public class RestoreFile {
-    private ConcurrentHashMap<Integer, byte[] > chunks;
-    Integer numberOfChunks;
-    AtomicInteger writing = new AtomicInteger(0);
+    private FileChannel channel;
+    private Path path;
+    private int numberOfChunks;
+    private int chunkSize;
+    private AtomicLongArray received;
+    private AtomicInteger written = new AtomicInteger(0);
+    private RestoreScheduler scheduler;
+    private ErasureRestore decoder;
+    private ChunkCodec[] codecs;
+    private long[] offsets;
 
-    public void setNumberOfChunks(int numberOfChunks) {
+    public RestoreFile(Path path, int numberOfChunks, int chunkSize) throws IOException {
+        this.path = path;
         this.numberOfChunks = numberOfChunks;
+        this.chunkSize = chunkSize;
+        this.received = new AtomicLongArray((numberOfChunks + 63) / 64);
+        this.channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes the chunk at its offset unless it was already written, the file is closed after the last chunk
+     * @param chunkNo
+     * @param body
+     * @return number of chunks written including this one, -1 if the chunk was already written or is not part of the file
+     */
+    public int write(int chunkNo, ByteBuffer body) {
+        if (chunkNo < 0 || chunkNo >= this.numberOfChunks || !claim(chunkNo)) {
+            return -1;
+        }
+        long position = this.offsets == null ? (long) chunkNo * this.chunkSize : this.offsets[chunkNo];
+        try {
+            while (body.hasRemaining()) {
+                position += this.channel.write(body, position);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        int done = this.written.incrementAndGet();
+        if (done == this.numberOfChunks) {
+            close();
+        }
+        return done;
+    }
+
+    /**
+     * Sets the bit of the chunk
+     * @param chunkNo
+     * @return true if the bit was not set before
+     */
+    private boolean claim(int chunkNo) {
+        int word = chunkNo >>> 6;
+        long bit = 1L << (chunkNo & 63);
+        while (true) {
+            long old = this.received.get(word);
+            if ((old & bit) != 0) {
+                return false;
+            }
+            if (this.received.compareAndSet(word, old, old | bit)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param chunkNo
+     * @return true if the chunk was already received
+     */
+    public boolean has(int chunkNo) {
+        return (this.received.get(chunkNo >>> 6) & (1L << (chunkNo & 63))) != 0;
     }
 
-    public RestoreFile(ConcurrentHashMap<Integer, byte[]> chunks) {
-        this.chunks = chunks;
-        numberOfChunks= null;
+    /**
+     *
+     * @param chunkNo
+     * @return codec of the body of the chunk as it was sent
+     */
+    public ChunkCodec getCodec(int chunkNo) {
+        if (this.codecs == null || chunkNo < 0 || chunkNo >= this.codecs.length || this.codecs[chunkNo] == null) {
+            return ChunkCodec.RAW;
+        }
+        return this.codecs[chunkNo];
     }
 
-    public ConcurrentHashMap<Integer, byte[]> getChunks() {
-        return chunks;
+    /**
+     * Sets the codec of every chunk of the file
+     * @param codecs
+     */
+    public void setCodecs(ChunkCodec[] codecs) {
+        this.codecs = codecs;
     }
 
-    public Integer getNumberOfChunks() {
+    /**
+     * Sets where each chunk starts, for files whose chunks do not all have the chunk size
+     * @param offsets offset of every chunk followed by the size of the file
+     */
+    public void setOffsets(long[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     *
+     * @param chunkNo
+     * @param length
+     * @return true if a chunk of the length can be the chunk, only the last one is shorter when the offsets are not known
+     */
+    public boolean fits(int chunkNo, int length) {
+        if (this.offsets != null) {
+            return chunkNo >= 0 && chunkNo < this.numberOfChunks && this.offsets[chunkNo + 1] - this.offsets[chunkNo] == length;
+        }
+        return length >= this.chunkSize || chunkNo >= this.numberOfChunks - 1;
+    }
+
+    /**
+     * Closes the file, chunks that arrive afterwards are ignored
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the file and deletes what was written of it, a file missing chunks is not left as if it was restored
+     */
+    public void abort() {
+        close();
+        try {
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *
+     * @return number of chunks written
+     */
+    public int getWritten() {
+        return this.written.get();
+    }
+
+    public RestoreScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setScheduler(RestoreScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     *
+     * @return the restore of the shards of an erasure coded file, null for replicated files
+     */
+    public ErasureRestore getDecoder() {
+        return decoder;
+    }
+
+    public void setDecoder(ErasureRestore decoder) {
+        this.decoder = decoder;
+    }
+
+    public int getNumberOfChunks() {
         return numberOfChunks;
     }
+
+    public Path getPath() {
+        return path;
+    }
 }
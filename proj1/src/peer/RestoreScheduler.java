@@ -0,0 +1,114 @@
+package peer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests the chunks of a file keeping a bounded window of GETCHUNK messages in flight.
+ * The window grows while CHUNK messages keep up and shrinks when requests have to be sent again
+ */
+public class RestoreScheduler {
+    private static final int MAX_WINDOW = 128;
+    private static final int INITIAL_WINDOW = 8;
+
+    private String fileId;
+    private RestoreFile restoring;
+    private int nextChunk = 0;
+    private CongestionWindow window = new CongestionWindow(INITIAL_WINDOW, MAX_WINDOW);
+    private ConcurrentHashMap<Integer, Long> pending = new ConcurrentHashMap<>();
+    private AtomicInteger retries = new AtomicInteger(0);
+    private AtomicInteger gaveUp = new AtomicInteger(0);
+    private AtomicLong bytes = new AtomicLong(0);
+    private long start;
+
+    public RestoreScheduler(String fileId, RestoreFile restoring) {
+        this.fileId = fileId;
+        this.restoring = restoring;
+    }
+
+    /**
+     * Sends the first window of requests
+     */
+    public void start() {
+        this.start = System.currentTimeMillis();
+        fill();
+    }
+
+    /**
+     * Requests chunks until the window is full or every chunk was requested
+     */
+    private synchronized void fill() {
+        Peer peer = Peer.getServer();
+        while (nextChunk < restoring.getNumberOfChunks() && window.tryAcquire()) {
+            int chunkNo = nextChunk++;
+            pending.put(chunkNo, System.currentTimeMillis());
+            byte[] message = MessageType.createGetchunk("1.0", (int) peer.getPeerId(), fileId, chunkNo);
+            peer.RestoreAux(1, message, fileId, chunkNo, 1);
+        }
+    }
+
+    /**
+     * Called when the chunk was written, releases it from the window
+     * @param chunkNo
+     * @param size size of the chunk body
+     */
+    void received(int chunkNo, int size) {
+        Long sent = pending.remove(chunkNo);
+        if (sent == null) {
+            return;
+        }
+        bytes.addAndGet(size);
+        window.acked(sent > 0 ? System.currentTimeMillis() - sent : -1);
+        if (restoring.getWritten() < restoring.getNumberOfChunks()) {
+            Peer.getServer().getPool().execute(this::fill);
+        }
+    }
+
+    /**
+     * Reports the duration and sustained throughput of the restore, called once after the last chunk is written
+     */
+    void ended() {
+        long time = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println("Ended Restore of file " + restoring.getPath() + " in " + time + " ms (" + bytes.get() / time + " KB/s, "
+                + retries.get() + " retries, " + gaveUp.get() + " gave up)");
+    }
+
+    /**
+     * Called when the request for the chunk has to be sent again
+     * @param chunkNo
+     */
+    void retried(int chunkNo) {
+        retries.incrementAndGet();
+        // retransmitted requests are not used to measure the round trip time
+        pending.computeIfPresent(chunkNo, (k, v) -> -1L);
+        window.retried();
+    }
+
+    /**
+     * Called when the chunk did not arrive after every retry, the file can not be restored without it.
+     * The restore ends and the partial file is deleted, the requests still pending stop with it
+     * @param chunkNo
+     */
+    void gaveUp(int chunkNo) {
+        gaveUp.incrementAndGet();
+        if (pending.remove(chunkNo) == null) {
+            return;
+        }
+        // a newer restore of the same file may have replaced this one, it writes to the same path
+        if (Peer.getServer().getFileRestoring().remove(fileId, restoring)) {
+            restoring.abort();
+            long time = Math.max(System.currentTimeMillis() - start, 1);
+            System.out.println("Restore of file " + restoring.getPath() + " failed after " + time + " ms, chunk " + chunkNo
+                    + " could not be restored (" + retries.get() + " retries)");
+        }
+    }
+
+    /**
+     *
+     * @return current size of the window
+     */
+    public int getWindow() {
+        return window.getWindow();
+    }
+}
@@ -0,0 +1,105 @@
+package peer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared retransmission timers of every subprotocol, keyed so a retry can be cancelled
+ * as soon as its goal is met
+ */
+public class Retransmissions {
+    private TimingWheel wheel;
+    private ConcurrentHashMap<String, Entry> timers = new ConcurrentHashMap<>();
+
+    public Retransmissions(Executor executor) {
+        // 10ms ticks, one turn of the wheel covers about 5 seconds
+        this.wheel = new TimingWheel(10, 512, executor);
+        Thread thread = new Thread(this.wheel, "retransmissions");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules the next try of a retransmission, replacing the pending one with the same key
+     * @param key
+     * @param task
+     * @param delay in milliseconds
+     */
+    public void schedule(String key, Runnable task, long delay) {
+        Entry entry = new Entry(key, task);
+        // the entry is in the map before it is on the wheel, a cancel in between finds it and it never starts
+        Entry old = this.timers.put(key, entry);
+        if (old != null) {
+            old.stop();
+        }
+        entry.start(delay);
+    }
+
+    /**
+     * Schedules a task that is not cancelled by key
+     * @param task
+     * @param delay in milliseconds
+     */
+    public void schedule(Runnable task, long delay) {
+        this.wheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the pending try of a retransmission
+     * @param key
+     * @return true if there was one
+     */
+    public boolean cancel(String key) {
+        Entry entry = this.timers.remove(key);
+        return entry != null && entry.stop();
+    }
+
+    /**
+     *
+     * @return number of timers waiting on the wheel
+     */
+    public int getPending() {
+        return this.wheel.getPending();
+    }
+
+    private class Entry implements Runnable {
+        private String key;
+        private Runnable task;
+        private TimingWheel.Timeout timeout;
+        private boolean stopped = false;
+
+        private Entry(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * Puts the entry on the wheel unless it was stopped first
+         * @param delay in milliseconds
+         */
+        private synchronized void start(long delay) {
+            if (!this.stopped) {
+                this.timeout = wheel.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         *
+         * @return false if the task already ran or was stopped before
+         */
+        private synchronized boolean stop() {
+            if (this.stopped) {
+                return false;
+            }
+            this.stopped = true;
+            return this.timeout == null || this.timeout.cancel();
+        }
+
+        @Override
+        public void run() {
+            timers.remove(this.key, this);
+            this.task.run();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Space the peer may use to store chunks. Space is reserved before a chunk is accepted and the reservation
+ * is committed once its contents are stored or released if they were not, so concurrent PUTCHUNKs never take
+ * more than the maximum size between them. The free space is leased in batches to stripes picked by thread,
+ * most reservations only change the lease of their own stripe and the handler threads do not contend on a
+ * single counter. Idle leases are taken back before a reservation is refused
+ */
+public class StorageQuota {
+    private static final long LEASE = 1024 * 1024;
+    // a stripe per cache line
+    private static final int PAD = 8;
+
+    private final int mask;
+    private final AtomicLongArray leases;
+    private final AtomicLong free = new AtomicLong(0);
+    private final LongAdder used = new LongAdder();
+    private final LongAdder reserved = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private volatile long limit = -1;
+
+    public StorageQuota() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        this.mask = stripes - 1;
+        this.leases = new AtomicLongArray(stripes * PAD);
+    }
+
+    /**
+     * Reserves space for a chunk that is about to be stored
+     * @param size bytes
+     * @return true if they fit in the maximum size
+     */
+    boolean reserve(long size) {
+        if (size <= 0) {
+            return true;
+        }
+        this.reserved.add(size);
+        // the limit is read after the reservation is counted, a new limit always sees it
+        if (this.limit == -1) {
+            return true;
+        }
+        int stripe = stripe();
+        if (take(stripe, size) || lease(stripe, size)) {
+            return true;
+        }
+        reclaimLeases();
+        if (lease(stripe, size)) {
+            return true;
+        }
+        this.reserved.add(-size);
+        this.refused.increment();
+        return false;
+    }
+
+    /**
+     * The chunk was stored, the reserved bytes are now used
+     * @param size bytes reserved
+     */
+    void commit(long size) {
+        if (size > 0) {
+            this.reserved.add(-size);
+            this.used.add(size);
+        }
+    }
+
+    /**
+     * The chunk was not stored or its contents were already there, the reserved bytes are free again
+     * @param size bytes reserved
+     */
+    void release(long size) {
+        if (size > 0) {
+            this.reserved.add(-size);
+            this.leases.addAndGet(stripe() * PAD, size);
+        }
+    }
+
+    /**
+     * Counts bytes stored without a reservation, like the chunks recovered from the last session
+     * @param size
+     */
+    void charge(long size) {
+        this.used.add(size);
+        this.free.addAndGet(-size);
+    }
+
+    /**
+     * Bytes removed from the disk
+     * @param size
+     */
+    void free(long size) {
+        this.used.add(-size);
+        this.free.addAndGet(size);
+    }
+
+    /**
+     * Sets the maximum size, if less than the used bytes the reservations fail until enough is freed
+     * @param limit bytes or -1 for no limit
+     */
+    synchronized void setLimit(long limit) {
+        long old = this.limit;
+        this.limit = limit;
+        if (limit == -1) {
+            return;
+        }
+        // the leases are taken back so a lower limit holds for every stripe
+        reclaimLeases();
+        if (old == -1) {
+            this.free.set(limit - this.used.sum() - this.reserved.sum());
+        } else {
+            this.free.addAndGet(limit - old);
+        }
+    }
+
+    /**
+     *
+     * @return maximum size in bytes, -1 if there is no limit
+     */
+    public long getLimit() {
+        return this.limit;
+    }
+
+    /**
+     *
+     * @return bytes used by the stored chunks
+     */
+    public long getUsed() {
+        return this.used.sum();
+    }
+
+    /**
+     *
+     * @return reserved bytes, number of refused reservations
+     */
+    public String getStats() {
+        return this.reserved.sum() + " bytes reserved, " + this.refused.sum() + " reservations refused";
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & this.mask;
+    }
+
+    /**
+     * Takes the bytes from the lease of the stripe
+     * @return false if the lease is too small or more than the maximum size is used
+     */
+    private boolean take(int stripe, long size) {
+        if (this.free.get() < 0) {
+            return false;
+        }
+        int i = stripe * PAD;
+        long lease = this.leases.get(i);
+        while (lease >= size) {
+            if (this.leases.compareAndSet(i, lease, lease - size)) {
+                return true;
+            }
+            lease = this.leases.get(i);
+        }
+        return false;
+    }
+
+    /**
+     * Takes the bytes from the free space along with a new lease for the stripe, or as much of it as there is
+     * @return false if there is not enough free space
+     */
+    private boolean lease(int stripe, long size) {
+        long available = this.free.get();
+        while (available >= size) {
+            long taken = Math.min(available, size + LEASE);
+            if (this.free.compareAndSet(available, available - taken)) {
+                if (taken > size) {
+                    this.leases.addAndGet(stripe * PAD, taken - size);
+                }
+                return true;
+            }
+            available = this.free.get();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the leases of every stripe to the free space
+     */
+    private void reclaimLeases() {
+        for (int i = 0; i <= this.mask; i++) {
+            long lease = this.leases.getAndSet(i * PAD, 0);
+            if (lease != 0) {
+                this.free.addAndGet(lease);
+            }
+        }
+    }
+}
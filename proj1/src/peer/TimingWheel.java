@@ -0,0 +1,184 @@
+package peer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel, timers are kept in a ring of buckets indexed by their expiration tick,
+ * so adding and cancelling a timer is O(1) whatever the number of pending timers.
+ * A single thread advances the wheel and hands the expired tasks to an executor
+ */
+public class TimingWheel implements Runnable {
+    private static final int NEW = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private long tickMillis;
+    private Timeout[] buckets;
+    private int mask;
+    private long tick = 0;
+    private long startTime;
+    private Executor executor;
+    private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * @param tickMillis duration of a tick
+     * @param size number of buckets, rounded up to a power of two
+     * @param executor runs the expired tasks
+     */
+    public TimingWheel(long tickMillis, int size, Executor executor) {
+        this.tickMillis = tickMillis;
+        int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task, the timer is only placed in its bucket on the next tick
+     * @param task
+     * @param delay
+     * @param unit
+     * @return handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - this.startTime + unit.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline);
+        this.pending.incrementAndGet();
+        this.added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     *
+     * @return number of timers that did not expire nor were cancelled yet
+     */
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    /**
+     * Advances the wheel one tick at a time
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long deadline = (this.tick + 1) * TimeUnit.MILLISECONDS.toNanos(this.tickMillis);
+            long sleep = deadline - (System.nanoTime() - this.startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            expire(this.buckets[(int) (this.tick & this.mask)]);
+            this.tick++;
+        }
+    }
+
+    /**
+     * Places the new timers in the bucket of their expiration tick
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = this.added.poll()) != null) {
+            if (timeout.state.get() != NEW) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / TimeUnit.MILLISECONDS.toNanos(this.tickMillis), this.tick);
+            timeout.rounds = (ticks - this.tick) / this.buckets.length;
+            int index = (int) (ticks & this.mask);
+            timeout.bucket = index;
+            timeout.next = this.buckets[index];
+            if (timeout.next != null) {
+                timeout.next.prev = timeout;
+            }
+            this.buckets[index] = timeout;
+        }
+    }
+
+    /**
+     * Unlinks the cancelled timers from their buckets
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = this.cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    /**
+     * Runs the timers of the bucket that are on their last round
+     * @param timeout first timer of the bucket
+     */
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(NEW, EXPIRED)) {
+                    this.pending.decrementAndGet();
+                    this.executor.execute(timeout.task);
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (this.buckets[timeout.bucket] == timeout) {
+            this.buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public class Timeout {
+        private Runnable task;
+        private long deadline;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+        private AtomicInteger state = new AtomicInteger(NEW);
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, it is removed from its bucket on the next tick
+         * @return false if the task already ran or was cancelled before
+         */
+        public boolean cancel() {
+            if (this.state.compareAndSet(NEW, CANCELLED)) {
+                pending.decrementAndGet();
+                cancelled.offer(this);
+                return true;
+            }
+            return false;
+        }
+    }
+}
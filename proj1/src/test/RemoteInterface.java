@@ -6,6 +6,10 @@ import java.rmi.RemoteException;
 public interface RemoteInterface extends Remote {
     String Backup(String filename, int replicationDegree) throws RemoteException;
 
+    String BackupErasure(String filename, int dataShards, int parityShards) throws RemoteException;
+
+    String BackupDelta(String filename, int replicationDegree) throws RemoteException;
+
     boolean Restore(String filename) throws RemoteException;
 
     boolean Delete(String filename) throws RemoteException;
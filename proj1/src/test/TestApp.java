@@ -30,6 +30,27 @@ public class TestApp {
                     System.out.println(server.Backup(args[2], a));
                     break;
                 }
+                case "BACKUP_DELTA": {
+                    int a;
+                    try {
+                        a = Integer.parseInt(args[3]);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("4th argument is not a number!!!!");
+                    }
+                    System.out.println(server.BackupDelta(args[2], a));
+                    break;
+                }
+                case "BACKUP_EC": {
+                    int k, m;
+                    try {
+                        k = Integer.parseInt(args[3]);
+                        m = Integer.parseInt(args[4]);
+                    } catch (Exception e) {
+                        throw new IllegalArgumentException("4th and 5th arguments are not numbers!!!!");
+                    }
+                    System.out.println(server.BackupErasure(args[2], k, m));
+                    break;
+                }
                 case "RESTORE": {
                     if (!server.Restore(args[2])) {
                         System.out.println("No Such file " + args[2]);